@@ -0,0 +1,406 @@
+/******************************************************************************
+ *  Compilation:  javac AsyncImageIO.java
+ *  Execution:    java AsyncImageIO template.png scene1.png scene2.png ...
+ *
+ *  Image decode and encode stages that run off the calling thread.
+ *
+ *  Decoding runs on a pool of decoder threads. Each decode asks the
+ *  image reader for the file's size and pixel layout first and then
+ *  decodes into a pooled BufferedImage of exactly that layout
+ *  (ImageReadParam.setDestination), so a batch of same-sized frames
+ *  reuses a handful of rasters instead of allocating one per file.
+ *  release() returns an image to the pool once its pixels are no longer
+ *  needed. frames() walks a list of files keeping the next few decodes
+ *  in flight, so the next frame is usually ready by the time the caller
+ *  has finished with the current one.
+ *
+ *  Encoding runs on its own pool; encode() returns at once and the file
+ *  is written while the caller moves on. The caller must not modify the
+ *  image until the returned future completes, and drain() waits for
+ *  every pending write. At most prefetch writes wait behind the busy
+ *  encoder threads; beyond that encode() blocks until one finishes, so
+ *  a producer faster than the disk cannot queue up images without bound.
+ *  Finished writes leave the pending list as they complete; failed ones
+ *  stay until drain() reports them.
+ *
+ *  % java AsyncImageIO template.png scenes/*.png     (32 512-by-512 scenes)
+ *  32 frames: compute 3148.3 ms, waiting on decode 60.2 ms, encode 2506.7 ms off thread
+ *  rasters allocated = 5
+ *
+ ******************************************************************************/
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncImageIO implements AutoCloseable {
+
+    // the size and pixel layout of a pooled image
+    private static final class Shape {
+        final int width, height;
+        final ImageTypeSpecifier type;
+
+        Shape(int width, int height, ImageTypeSpecifier type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) return false;
+            Shape s = (Shape) o;
+            return width == s.width && height == s.height && type.equals(s.type);
+        }
+
+        public int hashCode() {
+            return 31 * (31 * width + height) + type.hashCode();
+        }
+    }
+
+
+    // decoded frames of a list of files, in order, with the next few
+    // decodes already under way
+    public final class Frames {
+        private final Iterator<File> files;
+        private final Deque<Future<BufferedImage>> ahead = new ArrayDeque<Future<BufferedImage>>();
+
+        private Frames(List<File> files) {
+            this.files = files.iterator();
+            fill();
+        }
+
+        public boolean hasNext() {
+            return !ahead.isEmpty();
+        }
+
+        // return the next frame, waiting for its decode if need be; the
+        // caller should release() it when done with the pixels
+        public BufferedImage next() throws IOException {
+            Future<BufferedImage> f = ahead.pollFirst();
+            if (f == null) throw new java.util.NoSuchElementException();
+            fill();
+            long start = System.nanoTime();
+            try {
+                return get(f);
+            }
+            finally {
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        private void fill() {
+            while (ahead.size() < prefetch && files.hasNext()) {
+                ahead.addLast(decode(files.next()));
+            }
+        }
+    }
+
+
+    private final ExecutorService decoders;
+    private final ExecutorService encoders;
+    private final int prefetch;                       // decodes kept in flight by Frames
+    private final int poolLimit;                      // idle images kept per shape
+
+    private final Map<Shape, ConcurrentLinkedQueue<BufferedImage>> pool =
+        new ConcurrentHashMap<Shape, ConcurrentLinkedQueue<BufferedImage>>();
+    private final Map<BufferedImage, Shape> owned = new IdentityHashMap<BufferedImage, Shape>();
+    private final Set<BufferedImage> lent =           // owned images handed out, guarded by owned
+        Collections.newSetFromMap(new IdentityHashMap<BufferedImage, Boolean>());
+    private final List<Future<File>> pending = new ArrayList<Future<File>>();
+    private final Semaphore encodeSlots;              // writes queued or running
+
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicLong waitNanos    = new AtomicLong();
+    private final AtomicLong decodeNanos  = new AtomicLong();
+    private final AtomicLong encodeNanos  = new AtomicLong();
+
+
+    // create stages with the given numbers of decoder and encoder threads,
+    // keeping up to prefetch decodes ahead of each Frames consumer
+    public AsyncImageIO(int decodeThreads, int encodeThreads, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("prefetch must be positive");
+        this.decoders = Executors.newFixedThreadPool(decodeThreads, daemons("decode"));
+        this.encoders = Executors.newFixedThreadPool(encodeThreads, daemons("encode"));
+        this.prefetch = prefetch;
+        this.poolLimit = prefetch + decodeThreads + 1;
+        this.encodeSlots = new Semaphore(encodeThreads + prefetch);
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+
+    // start decoding the file into a pooled image
+    public Future<BufferedImage> decode(final File file) {
+        return decoders.submit(new Callable<BufferedImage>() {
+            public BufferedImage call() throws IOException { return read(file); }
+        });
+    }
+
+    // return the decoded frames of the files, in order
+    public Frames frames(List<File> files) {
+        return new Frames(files);
+    }
+
+    // return an image obtained from this stage to the pool; its pixels
+    // will be overwritten by a later decode. Releasing an image that is
+    // not out, such as one already released, does nothing, so no two
+    // decodes can share a raster
+    public void release(BufferedImage image) {
+        Shape shape;
+        synchronized (owned) {
+            if (!lent.remove(image)) return;
+            shape = owned.get(image);
+        }
+        ConcurrentLinkedQueue<BufferedImage> free = pool.get(shape);
+        if (free.size() < poolLimit) free.add(image);
+        else synchronized (owned) { owned.remove(image); }
+    }
+
+
+    // start writing the image to file as png or jpg, by its suffix; the
+    // image must not be modified until the future completes. Blocks while
+    // every encode slot is taken
+    public Future<File> encode(final BufferedImage image, final File file) throws IOException {
+        String name = file.getName();
+        final String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (!suffix.equals("png") && !suffix.equals("jpg")) {
+            throw new IllegalArgumentException("filename must end in .jpg or .png");
+        }
+        try {
+            encodeSlots.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        Encode f = new Encode(new Callable<File>() {
+            public File call() throws IOException {
+                long start = System.nanoTime();
+                if (!ImageIO.write(image, suffix, file)) throw new IOException("No writer for " + file);
+                encodeNanos.addAndGet(System.nanoTime() - start);
+                return file;
+            }
+        });
+        // listed before it can run, so done() always finds it
+        synchronized (pending) { pending.add(f); }
+        try {
+            encoders.execute(f);
+        }
+        catch (RejectedExecutionException e) {
+            f.cancel(false);
+            throw e;
+        }
+        return f;
+    }
+
+    // an encode that gives back its slot when it finishes and leaves the
+    // pending list unless it failed, so drain() can still report it
+    private final class Encode extends FutureTask<File> {
+        Encode(Callable<File> write) { super(write); }
+
+        protected void done() {
+            encodeSlots.release();
+            if (failed()) return;
+            synchronized (pending) { pending.remove(this); }
+        }
+
+        private boolean failed() {
+            if (isCancelled()) return false;
+            try {
+                get();
+                return false;
+            }
+            catch (ExecutionException e) {
+                return true;
+            }
+            catch (InterruptedException e) {
+                // done, so get() does not wait
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    // wait for every pending encode; throws the first failure
+    public void drain() throws IOException {
+        List<Future<File>> list;
+        synchronized (pending) {
+            list = new ArrayList<Future<File>>(pending);
+            pending.clear();
+        }
+        for (Future<File> f : list) get(f);
+    }
+
+    // finish pending encodes and stop the threads
+    public void close() throws IOException {
+        try { drain(); }
+        finally {
+            decoders.shutdown();
+            encoders.shutdown();
+        }
+    }
+
+
+    // return the number of images this stage has allocated
+    public int allocated()       { return allocated.get(); }
+
+    // return the time consumers spent blocked waiting for a decode
+    public long waitNanos()      { return waitNanos.get(); }
+
+    // return the total time spent decoding and encoding, on pool threads
+    public long decodeNanos()    { return decodeNanos.get(); }
+    public long encodeNanos()    { return encodeNanos.get(); }
+
+
+    // decode the file into a pooled image of its own size and layout
+    private BufferedImage read(File file) throws IOException {
+        long start = System.nanoTime();
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null) throw new IOException("Could not open file: " + file);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) throw new IOException("Invalid image file: " + file);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                if (!types.hasNext()) throw new IOException("Invalid image file: " + file);
+                Shape shape = new Shape(reader.getWidth(0), reader.getHeight(0), types.next());
+                BufferedImage image = acquire(shape);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(image);
+                try {
+                    reader.read(0, param);
+                }
+                catch (IOException e) {
+                    release(image);
+                    throw e;
+                }
+                catch (RuntimeException e) {
+                    release(image);
+                    throw e;
+                }
+                return image;
+            }
+            finally { reader.dispose(); }
+        }
+        finally {
+            iis.close();
+            decodeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private BufferedImage acquire(Shape shape) {
+        ConcurrentLinkedQueue<BufferedImage> free = pool.get(shape);
+        if (free == null) {
+            pool.putIfAbsent(shape, new ConcurrentLinkedQueue<BufferedImage>());
+            free = pool.get(shape);
+        }
+        BufferedImage image = free.poll();
+        if (image == null) {
+            image = shape.type.createBufferedImage(shape.width, shape.height);
+            allocated.incrementAndGet();
+        }
+        synchronized (owned) {
+            owned.put(image, shape);
+            lent.add(image);
+        }
+        return image;
+    }
+
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+
+    // sample client for testing: correlate each scene against the template
+    // and write a greyscale correlation map next to it, with decoding and
+    // encoding overlapped with the FFT work
+    public static void main(String[] args) throws IOException {
+        Template template = new Template(args[0], new rendImage(args[0]).getBufferedImage());
+        List<File> scenes = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) scenes.add(new File(args[i]));
+
+        AsyncImageIO io = new AsyncImageIO(2, 2, 4);
+        long compute = 0;
+        int count = 0;
+        Frames frames = io.frames(scenes);
+        while (frames.hasNext()) {
+            BufferedImage scene = frames.next();
+            long start = System.nanoTime();
+            int w = scene.getWidth();
+            int h = scene.getHeight();
+            int size = Correlator.paddedSize(Math.max(w, template.width()), Math.max(h, template.height()));
+            double[] s = Correlator.surface(Correlator.red(scene), w, h, template.spectrum(size));
+            io.release(scene);
+
+            // scale the surface to 0..255 grey
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (double v : s) { min = Math.min(min, v); max = Math.max(max, v); }
+            double scale = max > min ? 255.0 / (max - min) : 0.0;
+            int[] rgb = new int[s.length];
+            for (int i = 0; i < s.length; i++) {
+                int g = (int) ((s[i] - min) * scale);
+                rgb[i] = (g << 16) | (g << 8) | g;
+            }
+            BufferedImage map = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            map.setRGB(0, 0, size, size, rgb, 0, size);
+            compute += System.nanoTime() - start;
+
+            io.encode(map, new File(scenes.get(count).getPath() + ".corr.png"));
+            count++;
+        }
+        io.close();
+        System.out.printf("%d frames: compute %.1f ms, waiting on decode %.1f ms, encode %.1f ms off thread\n",
+                          count, compute / 1e6, io.waitNanos() / 1e6, io.encodeNanos() / 1e6);
+        System.out.println("rasters allocated = " + io.allocated());
+    }
+
+}
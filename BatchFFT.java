@@ -0,0 +1,236 @@
+/******************************************************************************
+ *  Compilation:  javac BatchFFT.java
+ *  Execution:    java BatchFFT
+ *
+ *  In-place FFTs of many signals of the same power-of-2 length at once.
+ *
+ *  The signals are stored contiguously in split arrays re[] and im[],
+ *  in one of two layouts:
+ *
+ *    row-major     sample k of signal m at m*n + k
+ *    interleaved   sample k of signal m at k*count + m
+ *
+ *  The interleaved kernel does each butterfly for every signal before
+ *  moving to the next butterfly, so its innermost loop runs over the
+ *  batch with unit stride: the twiddle factor and loop overhead are
+ *  paid once per batch and the JIT can vectorize the loop. Row-major
+ *  batches of short signals are transposed a tile at a time into the
+ *  interleaved layout and back.
+ *
+ *  A row-major matrix is both layouts at once: its rows are a row-major
+ *  batch and its columns are an interleaved batch, so fft2() transforms
+ *  a matrix in two passes without a transpose.
+ *
+ *  % java BatchFFT
+ *  4096 signals of 256 points: max error vs fastCorr.fft = 1.3E-14
+ *  512-by-512 fft2: max error vs row-column fastCorr.fft = 0.0E+00
+ *
+ ******************************************************************************/
+
+public final class BatchFFT {
+
+    // largest tile, in doubles per array, gathered from a row-major batch
+    private static final int TILE = 1 << 15;
+
+    // static methods only
+    private BatchFFT() { }
+
+
+    // transform count row-major signals of length n in place
+    public static void rows(double[] re, double[] im, int n, int count) {
+        check(re, im, n, count);
+        int tile = Math.min(count, TILE / n);
+
+        // long signals: one planned transform per row
+        if (tile <= 1) {
+            double[] r = new double[n];
+            double[] i = new double[n];
+            for (int m = 0; m < count; m++) {
+                System.arraycopy(re, m*n, r, 0, n);
+                System.arraycopy(im, m*n, i, 0, n);
+                fastCorr.fft(r, i);
+                System.arraycopy(r, 0, re, m*n, n);
+                System.arraycopy(i, 0, im, m*n, n);
+            }
+            return;
+        }
+
+        // short signals: transpose a tile into interleaved order and back
+        double[] tr = new double[tile * n];
+        double[] ti = new double[tile * n];
+        for (int first = 0; first < count; first += tile) {
+            int t = Math.min(tile, count - first);
+            for (int m = 0; m < t; m++) {
+                int row = (first + m) * n;
+                for (int k = 0; k < n; k++) {
+                    tr[k*t + m] = re[row + k];
+                    ti[k*t + m] = im[row + k];
+                }
+            }
+            interleaved(tr, ti, 0, n, t);
+            for (int m = 0; m < t; m++) {
+                int row = (first + m) * n;
+                for (int k = 0; k < n; k++) {
+                    re[row + k] = tr[k*t + m];
+                    im[row + k] = ti[k*t + m];
+                }
+            }
+        }
+    }
+
+
+    // transform count interleaved signals of length n in place
+    public static void interleaved(double[] re, double[] im, int n, int count) {
+        check(re, im, n, count);
+        interleaved(re, im, 0, n, count);
+    }
+
+
+    // inverse transform count row-major signals of length n in place
+    public static void inverseRows(double[] re, double[] im, int n, int count) {
+        int len = n * count;
+        ComplexVector.conjugate(re, im, 0, len);
+        rows(re, im, n, count);
+        ComplexVector.conjugate(re, im, 0, len);
+        ComplexVector.scale(re, im, 1.0 / n, 0, len);
+    }
+
+
+    // inverse transform count interleaved signals of length n in place
+    public static void inverseInterleaved(double[] re, double[] im, int n, int count) {
+        int len = n * count;
+        ComplexVector.conjugate(re, im, 0, len);
+        interleaved(re, im, n, count);
+        ComplexVector.conjugate(re, im, 0, len);
+        ComplexVector.scale(re, im, 1.0 / n, 0, len);
+    }
+
+
+    // compute the 2D FFT of the row-major rows-by-cols matrix in place
+    public static void fft2(double[] re, double[] im, int rows, int cols) {
+        rows(re, im, cols, rows);
+        interleaved(re, im, rows, cols);
+    }
+
+
+    // compute the inverse 2D FFT of the row-major rows-by-cols matrix in place
+    public static void ifft2(double[] re, double[] im, int rows, int cols) {
+        int len = rows * cols;
+        ComplexVector.conjugate(re, im, 0, len);
+        fft2(re, im, rows, cols);
+        ComplexVector.conjugate(re, im, 0, len);
+        ComplexVector.scale(re, im, 1.0 / len, 0, len);
+    }
+
+
+    private static void check(double[] re, double[] im, int n, int count) {
+        if (Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("n is not a power of 2");
+        }
+        if (re.length < n * count || im.length < n * count) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+    }
+
+
+    // radix 2 decimation in time over count interleaved signals starting at off
+    private static void interleaved(double[] re, double[] im, int off, int n, int count) {
+        if (n == 1) return;
+
+        // bit-reversal permutation of whole sample rows
+        int shift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int k = 0; k < n; k++) {
+            int r = Integer.reverse(k) >>> shift;
+            if (r > k) {
+                int p = off + k*count;
+                int q = off + r*count;
+                for (int b = 0; b < count; b++) {
+                    double t = re[p + b]; re[p + b] = re[q + b]; re[q + b] = t;
+                    t = im[p + b]; im[p + b] = im[q + b]; im[q + b] = t;
+                }
+            }
+        }
+
+        // butterflies, each applied across the whole batch
+        fastCorr.Twiddles w = fastCorr.twiddles(n);
+        for (int m = 2; m <= n; m *= 2) {
+            int half = m / 2;
+            int step = n / m;
+            for (int s = 0; s < n; s += m) {
+                for (int k = 0; k < half; k++) {
+                    double wr = w.cos[k*step];
+                    double wi = w.sin[k*step];
+                    int p = off + (s + k) * count;
+                    int q = p + half * count;
+                    for (int b = 0; b < count; b++) {
+                        double tr = wr * re[q + b] - wi * im[q + b];
+                        double ti = wr * im[q + b] + wi * re[q + b];
+                        re[q + b] = re[p + b] - tr;
+                        im[q + b] = im[p + b] - ti;
+                        re[p + b] += tr;
+                        im[p + b] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+
+    // sample client for testing: compare batched transforms against
+    // one-at-a-time transforms
+    public static void main(String[] args) {
+        int n = 256;
+        int count = 4096;
+        double[] re = new double[n * count];
+        double[] im = new double[n * count];
+        for (int i = 0; i < re.length; i++) {
+            re[i] = Math.random() - 0.5;
+            im[i] = Math.random() - 0.5;
+        }
+        double[] re0 = re.clone();
+        double[] im0 = im.clone();
+        rows(re, im, n, count);
+
+        double err = 0.0;
+        double[] r = new double[n];
+        double[] i = new double[n];
+        for (int m = 0; m < count; m++) {
+            System.arraycopy(re0, m*n, r, 0, n);
+            System.arraycopy(im0, m*n, i, 0, n);
+            fastCorr.fft(r, i);
+            for (int k = 0; k < n; k++) {
+                err = Math.max(err, Math.hypot(r[k] - re[m*n + k], i[k] - im[m*n + k]));
+            }
+        }
+        System.out.printf("%d signals of %d points: max error vs fastCorr.fft = %.1E\n", count, n, err);
+
+        int size = 512;
+        Complex[][] x = new Complex[size][size];
+        double[] mre = new double[size * size];
+        double[] mim = new double[size * size];
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                mre[j*size + k] = Math.random() * 255;
+                x[j][k] = new Complex(mre[j*size + k], 0);
+            }
+        }
+        // reference: rows then columns, one Complex transform at a time
+        Complex[][] y = new Complex[size][];
+        for (int j = 0; j < size; j++) y[j] = fastCorr.fft(x[j]);
+        Complex[] a = new Complex[size];
+        for (int k = 0; k < size; k++) {
+            for (int j = 0; j < size; j++) a[j] = y[j][k];
+            Complex[] b = fastCorr.fft(a);
+            for (int j = 0; j < size; j++) y[j][k] = b[j];
+        }
+        fft2(mre, mim, size, size);
+        err = 0.0;
+        for (int j = 0; j < size; j++) {
+            for (int k = 0; k < size; k++) {
+                err = Math.max(err, Math.hypot(y[j][k].re() - mre[j*size + k], y[j][k].im() - mim[j*size + k]));
+            }
+        }
+        System.out.printf("%d-by-%d fft2: max error vs row-column fastCorr.fft = %.1E\n", size, size, err);
+    }
+
+}
@@ -0,0 +1,173 @@
+/******************************************************************************
+ *  Compilation:  javac ComplexVector.java
+ *  Execution:    java ComplexVector
+ *
+ *  In-place arithmetic on vectors of complex numbers stored as two
+ *  primitive arrays, re[] and im[].
+ *
+ *  Complex is immutable, so every operation on it creates an object;
+ *  a pointwise product of two 512-by-512 spectra creates 262,144 of
+ *  them. The methods here work on ranges [from, to) of split arrays and
+ *  overwrite their first operand, so spectrum arithmetic allocates
+ *  nothing. Use Complex for scalar convenience and ComplexVector for
+ *  bulk work; get() and set() move single values between the two.
+ *
+ *  % java ComplexVector
+ *  a            = 5.0 + 6.0i
+ *  b            = -3.0 + 4.0i
+ *  a * b        = -39.0 + 2.0i
+ *  a * conj(b)  = 9.0 - 38.0i
+ *  a + a * b    = -34.0 + 8.0i
+ *  2a           = 10.0 + 12.0i
+ *  |a|          = 7.810249675906654
+ *  arg(a)       = 0.8760580505981934
+ *  exp(b)       = -0.032542999640154786 - 0.03767897757486585i
+ *
+ ******************************************************************************/
+
+public final class ComplexVector {
+
+    // static methods only
+    private ComplexVector() { }
+
+    // a[i] = a[i] * b[i] for from <= i < to
+    public static void multiply(double[] are, double[] aim,
+                                double[] bre, double[] bim, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double r = are[i] * bre[i] - aim[i] * bim[i];
+            double m = are[i] * bim[i] + aim[i] * bre[i];
+            are[i] = r;
+            aim[i] = m;
+        }
+    }
+
+    // a[i] = a[i] * conj(b[i]) for from <= i < to
+    public static void multiplyConjugate(double[] are, double[] aim,
+                                         double[] bre, double[] bim, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double r = are[i] * bre[i] + aim[i] * bim[i];
+            double m = aim[i] * bre[i] - are[i] * bim[i];
+            are[i] = r;
+            aim[i] = m;
+        }
+    }
+
+    // acc[i] = acc[i] + a[i] * b[i] for from <= i < to
+    public static void multiplyAdd(double[] accRe, double[] accIm,
+                                   double[] are, double[] aim,
+                                   double[] bre, double[] bim, int from, int to) {
+        for (int i = from; i < to; i++) {
+            accRe[i] += are[i] * bre[i] - aim[i] * bim[i];
+            accIm[i] += are[i] * bim[i] + aim[i] * bre[i];
+        }
+    }
+
+    // a[i] = conj(a[i]) for from <= i < to
+    public static void conjugate(double[] are, double[] aim, int from, int to) {
+        for (int i = from; i < to; i++) {
+            aim[i] = -aim[i];
+        }
+    }
+
+    // a[i] = alpha * a[i] for from <= i < to
+    public static void scale(double[] are, double[] aim, double alpha, int from, int to) {
+        for (int i = from; i < to; i++) {
+            are[i] *= alpha;
+            aim[i] *= alpha;
+        }
+    }
+
+    // out[i] = |a[i]| for from <= i < to
+    public static void abs(double[] are, double[] aim, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = Math.sqrt(are[i] * are[i] + aim[i] * aim[i]);
+        }
+    }
+
+    // out[i] = arg(a[i]), between -pi and pi, for from <= i < to
+    public static void phase(double[] are, double[] aim, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = Math.atan2(aim[i], are[i]);
+        }
+    }
+
+    // a[i] = exp(a[i]) for from <= i < to
+    public static void exp(double[] are, double[] aim, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double r = Math.exp(are[i]);
+            double theta = aim[i];
+            are[i] = r * Math.cos(theta);
+            aim[i] = r * Math.sin(theta);
+        }
+    }
+
+    // return a[i] as a Complex
+    public static Complex get(double[] are, double[] aim, int i) {
+        return new Complex(are[i], aim[i]);
+    }
+
+    // a[i] = c
+    public static void set(double[] are, double[] aim, int i, Complex c) {
+        are[i] = c.re();
+        aim[i] = c.im();
+    }
+
+    // copy x[] into the split arrays re[] and im[]
+    public static void fromComplex(Complex[] x, double[] re, double[] im) {
+        for (int i = 0; i < x.length; i++) {
+            re[i] = x[i].re();
+            im[i] = x[i].im();
+        }
+    }
+
+    // return the split arrays re[] and im[] as a Complex[]
+    public static Complex[] toComplex(double[] re, double[] im) {
+        Complex[] x = new Complex[re.length];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = new Complex(re[i], im[i]);
+        }
+        return x;
+    }
+
+
+    // sample client for testing, following Complex.main
+    public static void main(String[] args) {
+        double[] re = { 5.0, -3.0 };
+        double[] im = { 6.0,  4.0 };
+        double[] r = new double[1];
+        double[] i = new double[1];
+        double[] out = new double[1];
+        double[] bre = { -3.0 };
+        double[] bim = {  4.0 };
+
+        System.out.println("a            = " + get(re, im, 0));
+        System.out.println("b            = " + get(re, im, 1));
+
+        r[0] = re[0]; i[0] = im[0];
+        multiply(r, i, bre, bim, 0, 1);
+        System.out.println("a * b        = " + get(r, i, 0));
+
+        r[0] = re[0]; i[0] = im[0];
+        multiplyConjugate(r, i, bre, bim, 0, 1);
+        System.out.println("a * conj(b)  = " + get(r, i, 0));
+
+        double[] ar = { re[0] };
+        double[] ai = { im[0] };
+        r[0] = re[0]; i[0] = im[0];
+        multiplyAdd(r, i, ar, ai, bre, bim, 0, 1);
+        System.out.println("a + a * b    = " + get(r, i, 0));
+
+        r[0] = re[0]; i[0] = im[0];
+        scale(r, i, 2.0, 0, 1);
+        System.out.println("2a           = " + get(r, i, 0));
+
+        abs(re, im, out, 0, 1);
+        System.out.println("|a|          = " + out[0]);
+        phase(re, im, out, 0, 1);
+        System.out.println("arg(a)       = " + out[0]);
+
+        exp(re, im, 1, 2);
+        System.out.println("exp(b)       = " + get(re, im, 1));
+    }
+
+}
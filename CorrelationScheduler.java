@@ -0,0 +1,360 @@
+/******************************************************************************
+ *  Compilation:  javac CorrelationScheduler.java
+ *  Execution:    java CorrelationScheduler [budget MB] [threads]
+ *
+ *  Runs correlations concurrently within a fixed memory budget.
+ *
+ *  Each job's working set is estimated from the scene and template sizes
+ *  before it runs: the padded scene spectrum, FFT scratch, the tile copy
+ *  if tiled, and the template's spectrum at that size if the template
+ *  does not hold it yet. A spectrum a job computes is its own and is
+ *  dropped when the job ends rather than cached on the template, where
+ *  it would stay resident outside the budget. A job is then given the
+ *  first plan whose estimate fits the budget on its own:
+ *
+ *    FULL   double-precision match of the whole scene (Correlator)
+ *    FIXED  the same on the fixed-point path (FixedFFT), 4 bytes per value
+ *           instead of 8
+ *    TILED  the scene in overlapping power-of-2 tiles, one at a time, with
+ *           the largest tile that fits; peaks are taken over the lags at
+ *           which the template lies inside a tile, as in TileCorrelator
+ *
+ *  and waits in a first-come first-served queue until that much of the
+ *  budget is free. A job whose smallest plan still does not fit is
+ *  refused at submit() rather than left to run out of heap. Cancelling a
+ *  job's future gives back its share of the budget, whether it was queued
+ *  or already handed to a worker. Every result reports its plan,
+ *  estimate, time spent queued and time computing.
+ *
+ *  % java CorrelationScheduler 96 4
+ *  job  scene        plan   tile   est MB   queued ms   compute ms   peak        expected
+ *    0  512x512      FULL      -      9.0         2.3        513.2   (191, 177)  (191, 177)
+ *    1  512x512      FULL      -      9.0         0.0        491.9   (426, 228)  (426, 228)
+ *    2  1024x1024    FULL      -     33.0         0.0        704.8   (815, 130)  (815, 130)
+ *    3  2048x2048    FIXED     -     65.0       520.3       2248.3   (1665, 106)  (1665, 106)
+ *    4  512x512      FULL      -      9.0       500.8        212.2   (5, 312)    (5, 312)
+ *    5  1024x1024    FULL      -     33.0      2674.3        502.7   (730, 213)  (730, 213)
+ *    6  3000x3000    TILED  1024     41.0      2141.4       1621.4   (26, 2505)  (26, 2505)
+ *    7  512x512      FULL      -      9.0      2137.2        145.3   (163, 234)  (163, 234)
+ *
+ ******************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class CorrelationScheduler {
+
+    public enum Plan { FULL, FIXED, TILED }
+
+    // bytes of FFT scratch beyond the matrices themselves (BatchFFT tiles)
+    private static final long SCRATCH = 1L << 19;
+
+    // smallest tile worth trying
+    private static final int MIN_TILE = 64;
+
+
+    // the outcome of one job
+    public static final class Report {
+        private final Plan plan;
+        private final int tile;                 // tile side, 0 unless TILED
+        private final long estimate;            // bytes
+        private final long queueNanos;
+        private final long computeNanos;
+        private final Correlator.Peak peak;
+
+        Report(Plan plan, int tile, long estimate, long queueNanos, long computeNanos, Correlator.Peak peak) {
+            this.plan = plan;
+            this.tile = tile;
+            this.estimate = estimate;
+            this.queueNanos = queueNanos;
+            this.computeNanos = computeNanos;
+            this.peak = peak;
+        }
+
+        public Plan plan()             { return plan; }
+        public int tile()              { return tile; }
+        public long estimate()         { return estimate; }
+        public long queueNanos()       { return queueNanos; }
+        public long computeNanos()     { return computeNanos; }
+        public Correlator.Peak peak()  { return peak; }
+
+        public String toString() {
+            return plan + (plan == Plan.TILED ? " " + tile : "") + ", " + estimate / (1 << 20) + " MB, queued "
+                 + queueNanos / 1000000 + " ms, computed " + computeNanos / 1000000 + " ms, " + peak;
+        }
+    }
+
+
+    // a job's future; a job cancelled before it runs never reaches call(),
+    // so its share of the budget is returned here or it leaks
+    private final class Task extends FutureTask<Report> {
+        private final Job job;
+
+        Task(Job job) {
+            super(job);
+            this.job = job;
+        }
+
+        protected void done() {
+            if (isCancelled()) cancelled(job);
+        }
+    }
+
+
+    // a job waiting for or holding its share of the budget
+    private final class Job implements Callable<Report> {
+        final double[] scene;
+        final int w, h;
+        final Template template;
+        final Plan plan;
+        final int tile;
+        final long estimate;
+        final long submitted = System.nanoTime();
+        long started;
+        boolean dispatched;                    // handed to a worker
+        boolean running;                       // call() entered
+        boolean released;                      // estimate returned to the budget
+        Task task;
+
+        Job(double[] scene, int w, int h, Template template, Plan plan, int tile, long estimate) {
+            this.scene = scene;
+            this.w = w;
+            this.h = h;
+            this.template = template;
+            this.plan = plan;
+            this.tile = tile;
+            this.estimate = estimate;
+        }
+
+        public Report call() {
+            // a cancel that raced past FutureTask.run has already given the
+            // budget back; stop before doing the work it no longer covers
+            synchronized (CorrelationScheduler.this) {
+                if (released) throw new CancellationException();
+                running = true;
+            }
+            try {
+                Correlator.Peak p;
+                if      (plan == Plan.FULL)  p = full(scene, w, h, template);
+                else if (plan == Plan.FIXED) p = FixedFFT.match(scene, w, h, fixedSpectrum(template, size(w, h, template)));
+                else                         p = tiled(scene, w, h, template, tile);
+                return new Report(plan, tile, estimate, started - submitted, System.nanoTime() - started, p);
+            }
+            finally {
+                finished(this);
+            }
+        }
+    }
+
+
+    private final long budget;
+    private final ExecutorService workers;
+    private final Deque<Job> queue = new ArrayDeque<Job>();
+    private long reserved;                     // bytes held by running jobs
+
+
+    // create a scheduler that keeps the running jobs' estimated working
+    // sets within budget bytes, on the given number of threads
+    public CorrelationScheduler(long budget, int threads) {
+        this.budget = budget;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+
+    // queue the match of the template in the w-by-h scene; throws if it
+    // cannot fit the budget even tiled
+    public Future<Report> submit(double[] scene, int w, int h, Template template) {
+        if (scene.length != w * h) throw new IllegalArgumentException("Dimensions don't agree");
+        Plan plan = null;
+        int tile = 0;
+        long est = estimate(Plan.FULL, w, h, template, 0);
+        if (est <= budget) plan = Plan.FULL;
+        else if ((est = estimate(Plan.FIXED, w, h, template, 0)) <= budget) plan = Plan.FIXED;
+        else {
+            // tiles at least twice the template, so each covers as many
+            // placements as it overlaps its neighbours by
+            int min = Math.max(MIN_TILE, Correlator.paddedSize(2 * template.width(), 2 * template.height()));
+            for (int t = size(w, h, template) / 2; t >= min && plan == null; t /= 2) {
+                est = estimate(Plan.TILED, w, h, template, t);
+                if (est <= budget) {
+                    plan = Plan.TILED;
+                    tile = t;
+                }
+            }
+        }
+        if (plan == null) {
+            throw new IllegalArgumentException(w + "-by-" + h + " scene does not fit in " + budget + " bytes");
+        }
+
+        Job job = new Job(scene, w, h, template, plan, tile, est);
+        job.task = new Task(job);
+        synchronized (this) {
+            queue.addLast(job);
+            dispatch();
+        }
+        return job.task;
+    }
+
+
+    // return the estimated bytes of a job under the plan, beyond the scene
+    // the caller already holds; tile is the tile side for TILED and
+    // ignored otherwise
+    public static long estimate(Plan plan, int w, int h, Template t, int tile) {
+        int size = size(w, h, t);
+        long n = (long) size * size;
+        switch (plan) {
+            case FULL:
+                return 16 * n + SCRATCH + (holds(t, size) ? 0 : 16 * n + SCRATCH);
+            case FIXED:
+                return 8 * n + SCRATCH + (holdsFixed(t, size) ? 0 : 8 * n + SCRATCH);
+            default:
+                long m = (long) tile * tile;
+                // tile pixels, its spectrum, and the template at tile size
+                return 8 * m + 16 * m + SCRATCH + (holds(t, tile) ? 0 : 16 * m + SCRATCH);
+        }
+    }
+
+    private static int size(int w, int h, Template t) {
+        return Correlator.paddedSize(Math.max(w, t.width()), Math.max(h, t.height()));
+    }
+
+    private static boolean holds(Template t, int size) {
+        for (int s : t.spectrumSizes()) if (s == size) return true;
+        return false;
+    }
+
+    private static boolean holdsFixed(Template t, int size) {
+        for (int s : t.fixedSpectrumSizes()) if (s == size) return true;
+        return false;
+    }
+
+    // return the template's spectrum at size if it holds one, else one for
+    // this job alone
+    private static Correlator.Spectrum spectrum(Template t, int size) {
+        if (holds(t, size)) return t.spectrum(size);
+        return Correlator.conjugateSpectrum(t.pixels(), t.width(), t.height(), size);
+    }
+
+    private static FixedFFT.Spectrum fixedSpectrum(Template t, int size) {
+        if (holdsFixed(t, size)) return t.fixedSpectrum(size);
+        return FixedFFT.conjugateSpectrum(t.pixels(), t.width(), t.height(), size);
+    }
+
+
+    // return the bytes held by running jobs
+    public synchronized long reserved() { return reserved; }
+
+    // return the number of jobs waiting for budget
+    public synchronized int queued()    { return queue.size(); }
+
+    // stop taking work once the queued jobs have run
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+
+    // start queued jobs, in order, while the one at the head fits
+    private synchronized void dispatch() {
+        while (!queue.isEmpty() && reserved + queue.peekFirst().estimate <= budget) {
+            Job job = queue.pollFirst();
+            reserved += job.estimate;
+            job.dispatched = true;
+            job.started = System.nanoTime();
+            workers.execute(job.task);
+        }
+    }
+
+    // return the job's estimate to the budget, once, and start what now fits
+    private synchronized void finished(Job job) {
+        if (job.dispatched && !job.released) {
+            job.released = true;
+            reserved -= job.estimate;
+        }
+        dispatch();
+    }
+
+    // a cancelled job leaves the queue if it is still waiting; if it was
+    // dispatched but will never run, its reservation is released, and if
+    // it is running, call() releases it when it stops
+    private synchronized void cancelled(Job job) {
+        if (!job.dispatched) queue.remove(job);
+        else if (!job.running) finished(job);
+        dispatch();
+    }
+
+
+    private static Correlator.Peak full(double[] scene, int w, int h, Template t) {
+        int size = size(w, h, t);
+        return Correlator.peak(Correlator.surface(scene, w, h, spectrum(t, size)), size);
+    }
+
+    // correlate the scene tile by tile and return the largest peak
+    private static Correlator.Peak tiled(double[] scene, int w, int h, Template t, int tile) {
+        int tw = t.width(), th = t.height();
+        int stepX = tile - tw + 1, stepY = tile - th + 1;
+        double[] crop = new double[tile * tile];
+        Correlator.Spectrum spectrum = spectrum(t, tile);
+        Correlator.Peak best = null;
+        for (int y = 0; y <= h - th; y += stepY) {
+            for (int x = 0; x <= w - tw; x += stepX) {
+                int cw = Math.min(tile, w - x);
+                int ch = Math.min(tile, h - y);
+                for (int j = 0; j < ch; j++) System.arraycopy(scene, (y + j) * w + x, crop, j * cw, cw);
+                double[] s = Correlator.surface(crop, cw, ch, spectrum);
+                Correlator.Peak p = Correlator.peak(s, tile, cw - tw + 1, ch - th + 1);
+                if (best == null || p.value() > best.value()) {
+                    best = new Correlator.Peak(x + p.x(), y + p.y(), p.value(), p.mean(), p.stddev());
+                }
+            }
+        }
+        return best;
+    }
+
+
+    // sample client for testing: a mix of scene sizes against one 32-by-32
+    // template hidden in each
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        long budget = (args.length > 0 ? Long.parseLong(args[0]) : 96) << 20;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        CorrelationScheduler scheduler = new CorrelationScheduler(budget, threads);
+
+        Random random = new Random(5);
+        int tw = 32;
+        double[] patch = new double[tw * tw];
+        for (int i = 0; i < patch.length; i++) patch[i] = random.nextInt(256);
+        Template template = new Template("patch", patch, tw, tw);
+
+        int[] sides = { 512, 512, 1024, 2048, 512, 1024, 3000, 512 };
+        Future<?>[] results = new Future<?>[sides.length];
+        int[][] truth = new int[sides.length][2];
+        for (int k = 0; k < sides.length; k++) {
+            int n = sides[k];
+            double[] scene = new double[n * n];
+            for (int i = 0; i < scene.length; i++) scene[i] = random.nextInt(128);
+            int ox = random.nextInt(n - tw), oy = random.nextInt(n - tw);
+            for (int j = 0; j < tw; j++) System.arraycopy(patch, j * tw, scene, (oy + j) * n + ox, tw);
+            truth[k][0] = ox;
+            truth[k][1] = oy;
+            results[k] = scheduler.submit(scene, n, n, template);
+        }
+
+        System.out.println("job  scene        plan   tile   est MB   queued ms   compute ms   peak        expected");
+        for (int k = 0; k < sides.length; k++) {
+            Report r = (Report) results[k].get();
+            System.out.printf("%3d  %-11s  %-5s  %4s  %7.1f  %10.1f  %11.1f   %-10s  (%d, %d)\n",
+                              k, sides[k] + "x" + sides[k], r.plan(), r.tile() == 0 ? "-" : "" + r.tile(),
+                              r.estimate() / 1048576.0, r.queueNanos() / 1e6, r.computeNanos() / 1e6,
+                              "(" + r.peak().x() + ", " + r.peak().y() + ")", truth[k][0], truth[k][1]);
+        }
+        scheduler.shutdown();
+    }
+
+}
@@ -0,0 +1,195 @@
+/******************************************************************************
+ *  Compilation:  javac Correlator.java
+ *  Execution:    java Correlator image1.png image2.png
+ *
+ *  FFT cross-correlation of a greyscale scene against a template on
+ *  primitive arrays.
+ *
+ *  Both images are zero-padded to a power-of-2 square, the scene is
+ *  transformed, multiplied by the conjugate template spectrum and
+ *  transformed back. The peak of the real part is at the offset of the
+ *  template's top-left corner in the scene. Unlike fastCorr.main, which
+ *  uses the forward transform twice and so reports a mirrored surface,
+ *  offsets here are read directly.
+ *
+ *  % java Correlator image1.png image2.png
+ *  peak at (x, y) = (220, 159), value = 7.9200448E8, score = 7.0711759092380415
+ *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public final class Correlator {
+
+    // the conjugate 2D spectrum of a template zero-padded to size-by-size
+    public static final class Spectrum {
+        private final int size;
+        private final double[] re;    // row-major, size * size
+        private final double[] im;
+
+        public Spectrum(int size, double[] re, double[] im) {
+            if (re.length != size * size || im.length != size * size) {
+                throw new IllegalArgumentException("Dimensions don't agree");
+            }
+            this.size = size;
+            this.re = re;
+            this.im = im;
+        }
+
+        public int size()     { return size; }
+        public double[] re()  { return re; }
+        public double[] im()  { return im; }
+    }
+
+
+    // the maximum of a correlation surface, with the surface's mean and
+    // standard deviation for judging how distinct it is
+    public static final class Peak {
+        private final int x;
+        private final int y;
+        private final double value;
+        private final double mean;
+        private final double stddev;
+
+        public Peak(int x, int y, double value, double mean, double stddev) {
+            this.x = x;
+            this.y = y;
+            this.value = value;
+            this.mean = mean;
+            this.stddev = stddev;
+        }
+
+        public int x()          { return x; }
+        public int y()          { return y; }
+        public double value()   { return value; }
+        public double mean()    { return mean; }
+        public double stddev()  { return stddev; }
+
+        // return the number of standard deviations the peak stands above the mean
+        public double score() {
+            return stddev > 0 ? (value - mean) / stddev : 0.0;
+        }
+
+        public String toString() {
+            return "peak at (x, y) = (" + x + ", " + y + "), value = " + (float) value
+                 + ", score = " + score();
+        }
+    }
+
+
+    // static methods only
+    private Correlator() { }
+
+
+    // return the red channel of the image as doubles, row-major
+    public static double[] red(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, w, h, null, 0, w);
+        double[] x = new double[w * h];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = (rgb[i] >> 16) & 0xff;
+        }
+        return x;
+    }
+
+
+    // return the smallest power of 2 that is at least w and h
+    public static int paddedSize(int w, int h) {
+        int n = Math.max(1, Math.max(w, h));
+        return Integer.bitCount(n) == 1 ? n : Integer.highestOneBit(n) * 2;
+    }
+
+
+    // copy the w-by-h row-major pixels into the top-left of a zeroed
+    // size-by-size matrix
+    static void pad(double[] pixels, int w, int h, int size, double[] out) {
+        if (w > size || h > size) {
+            throw new IllegalArgumentException(w + "-by-" + h + " does not fit in " + size);
+        }
+        Arrays.fill(out, 0.0);
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(pixels, j*w, out, j*size, w);
+        }
+    }
+
+
+    // return the conjugate spectrum of the w-by-h pixels zero-padded to size
+    public static Spectrum conjugateSpectrum(double[] pixels, int w, int h, int size) {
+        double[] re = new double[size * size];
+        double[] im = new double[size * size];
+        pad(pixels, w, h, size, re);
+        BatchFFT.fft2(re, im, size, size);
+        ComplexVector.conjugate(re, im, 0, re.length);
+        return new Spectrum(size, re, im);
+    }
+
+
+    // return the correlation surface of the w-by-h scene against the
+    // template spectrum t, row-major t.size()-by-t.size()
+    public static double[] surface(double[] scene, int w, int h, Spectrum t) {
+        int size = t.size();
+        double[] re = new double[size * size];
+        double[] im = new double[size * size];
+        pad(scene, w, h, size, re);
+        BatchFFT.fft2(re, im, size, size);
+        ComplexVector.multiply(re, im, t.re(), t.im(), 0, re.length);
+        BatchFFT.ifft2(re, im, size, size);
+        return re;
+    }
+
+
+    // return the peak of the size-by-size surface
+    public static Peak peak(double[] surface, int size) {
+        int best = 0;
+        double sum = 0.0;
+        double sum2 = 0.0;
+        for (int i = 0; i < surface.length; i++) {
+            double v = surface[i];
+            sum  += v;
+            sum2 += v * v;
+            if (v > surface[best]) best = i;
+        }
+        double mean = sum / surface.length;
+        double var = Math.max(0.0, sum2 / surface.length - mean * mean);
+        return new Peak(best % size, best / size, surface[best], mean, Math.sqrt(var));
+    }
+
+
+    // return the peak within the top-left cols-by-rows corner of the
+    // size-by-size surface, with the mean and deviation of the whole
+    // surface; lags in that corner are the ones at which the template lies
+    // wholly inside a scene that was smaller than size
+    public static Peak peak(double[] surface, int size, int cols, int rows) {
+        if (cols <= 0 || rows <= 0 || cols > size || rows > size) {
+            throw new IllegalArgumentException(cols + "-by-" + rows + " is not within " + size);
+        }
+        Peak all = peak(surface, size);
+        int best = 0;
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < cols; i++) {
+                if (surface[j*size + i] > surface[best]) best = j*size + i;
+            }
+        }
+        return new Peak(best % size, best / size, surface[best], all.mean(), all.stddev());
+    }
+
+
+    // correlate the w-by-h scene against the template and return the peak;
+    // a template set to fixed point is matched by FixedFFT
+    public static Peak match(double[] scene, int w, int h, Template template) {
+        if (template.isFixedPoint()) return FixedFFT.match(scene, w, h, template);
+        int size = paddedSize(Math.max(w, template.width()), Math.max(h, template.height()));
+        return peak(surface(scene, w, h, template.spectrum(size)), size);
+    }
+
+
+    // sample client for testing
+    public static void main(String[] args) {
+        BufferedImage scene = new rendImage(args[0]).getBufferedImage();
+        Template template = new Template(args[1], new rendImage(args[1]).getBufferedImage());
+        System.out.println(match(red(scene), scene.getWidth(), scene.getHeight(), template));
+    }
+
+}
@@ -0,0 +1,376 @@
+/******************************************************************************
+ *  Compilation:  javac FFTPlanner.java
+ *  Execution:    java FFTPlanner [wisdom file]
+ *
+ *  In-place power-of-2 FFT kernels on split arrays, and a planner that
+ *  picks the fastest one for each size on this machine.
+ *
+ *  Three kernels are available:
+ *
+ *    RADIX2       iterative radix 2 Cooley-Tukey
+ *    RADIX4       radix 4 butterflies (3 complex multiplies per 4
+ *                 points instead of 4), with one radix 2 stage when
+ *                 log2(n) is odd
+ *    SPLIT_RADIX  Sorensen's in-place split radix, the fewest
+ *                 multiplies of the three
+ *
+ *  plan(n) returns the kernel recorded for n in the wisdom, or
+ *  SPLIT_RADIX if n has not been measured. measure(n) times every
+ *  kernel on n-point data and records the winner; saveWisdom() writes
+ *  the choices to a file that is read back when the class is loaded,
+ *  so later processes skip the timing. The wisdom file defaults to
+ *  ~/.fftwisdom and can be set with -Dfft.wisdom=path.
+ *
+ *  % java FFTPlanner
+ *       n  kernel        max error vs radix 2
+ *       2  SPLIT_RADIX   0.0
+ *       4  SPLIT_RADIX   5.551115123125783E-17
+ *     ...
+ *    4096  SPLIT_RADIX   3.8428474007872526E-14
+ *    8192  RADIX4        6.99803436660041E-14
+ *     ...
+ *  wisdom saved to /home/user/.fftwisdom
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+public final class FFTPlanner {
+
+    // an in-place forward FFT of a power-of-2 length
+    public enum Kernel {
+        RADIX2      { void transform(double[] re, double[] im) { radix2(re, im); } },
+        RADIX4      { void transform(double[] re, double[] im) { radix4(re, im); } },
+        SPLIT_RADIX { void transform(double[] re, double[] im) { splitRadix(re, im); } };
+
+        abstract void transform(double[] re, double[] im);
+    }
+
+    // kernel choice per size, indexed by log2(n); null until planned
+    private static final Kernel[] PLANS = new Kernel[31];
+
+    // kernel used for sizes that have not been measured
+    private static final Kernel ESTIMATE = Kernel.SPLIT_RADIX;
+
+    static {
+        File file = wisdomFile();
+        if (file.isFile()) {
+            try { loadWisdom(file); }
+            catch (IOException e) {
+                System.err.println("Could not read FFT wisdom: " + file);
+            }
+        }
+    }
+
+    // static methods only
+    private FFTPlanner() { }
+
+
+    // return the kernel to use for an n-point FFT
+    public static Kernel plan(int n) {
+        Kernel k = PLANS[Integer.numberOfTrailingZeros(n)];
+        return k == null ? ESTIMATE : k;
+    }
+
+
+    // time every kernel on n-point data, record the fastest in the wisdom
+    // and return it
+    public static Kernel measure(int n) {
+        if (Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("n is not a power of 2");
+        }
+        double[] re = new double[n];
+        double[] im = new double[n];
+        int reps = Math.max(4, (1 << 20) / n);
+
+        Kernel best = ESTIMATE;
+        long bestTime = Long.MAX_VALUE;
+        for (Kernel k : Kernel.values()) {
+            long time = Long.MAX_VALUE;
+            for (int round = 0; round < 6; round++) {    // first round is warmup
+                for (int i = 0; i < n; i++) {
+                    re[i] = Math.random();
+                    im[i] = Math.random();
+                }
+                long start = System.nanoTime();
+                for (int r = 0; r < reps; r++) k.transform(re, im);
+                long elapsed = System.nanoTime() - start;
+                if (round > 0) time = Math.min(time, elapsed);
+            }
+            if (time < bestTime) {
+                bestTime = time;
+                best = k;
+            }
+        }
+        PLANS[Integer.numberOfTrailingZeros(n)] = best;
+        return best;
+    }
+
+
+    // return the wisdom file named by -Dfft.wisdom, or ~/.fftwisdom
+    public static File wisdomFile() {
+        String name = System.getProperty("fft.wisdom");
+        if (name != null) return new File(name);
+        return new File(System.getProperty("user.home"), ".fftwisdom");
+    }
+
+
+    // merge the kernel choices recorded in the file into the wisdom
+    public static void loadWisdom(File file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try { p.load(in); }
+        finally { in.close(); }
+
+        for (String key : p.stringPropertyNames()) {
+            try {
+                int n = Integer.parseInt(key);
+                Kernel k = Kernel.valueOf(p.getProperty(key).trim());
+                if (Integer.bitCount(n) == 1) {
+                    PLANS[Integer.numberOfTrailingZeros(n)] = k;
+                }
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println("Ignoring FFT wisdom entry: " + key);
+            }
+        }
+    }
+
+
+    // write the measured kernel choices to the file
+    public static void saveWisdom(File file) throws IOException {
+        Properties p = new Properties();
+        for (int log = 0; log < PLANS.length; log++) {
+            if (PLANS[log] != null) p.setProperty(String.valueOf(1 << log), PLANS[log].name());
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            p.store(out, "FFT wisdom for " + System.getProperty("os.arch") + ", "
+                       + Runtime.getRuntime().availableProcessors() + " cpus, java "
+                       + System.getProperty("java.version"));
+        }
+        finally { out.close(); }
+    }
+
+
+    // permute (re[], im[]) into bit-reversed order
+    private static void bitReverse(double[] re, double[] im) {
+        int n = re.length;
+        int shift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int k = 0; k < n; k++) {
+            int r = Integer.reverse(k) >>> shift;
+            if (r > k) {
+                double t = re[k]; re[k] = re[r]; re[r] = t;
+                t = im[k]; im[k] = im[r]; im[r] = t;
+            }
+        }
+    }
+
+
+    // radix 2 decimation in time
+    static void radix2(double[] re, double[] im) {
+        int n = re.length;
+        bitReverse(re, im);
+        fastCorr.Twiddles w = fastCorr.twiddles(n);
+        double[] cos = w.cos;
+        double[] sin = w.sin;
+        for (int m = 2; m <= n; m *= 2) {
+            int half = m / 2;
+            int step = n / m;
+            for (int s = 0; s < n; s += m) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k*step];
+                    double wi = sin[k*step];
+                    int p = s + k;
+                    int q = p + half;
+                    double tr = wr * re[q] - wi * im[q];
+                    double ti = wr * im[q] + wi * re[q];
+                    re[q] = re[p] - tr;
+                    im[q] = im[p] - ti;
+                    re[p] += tr;
+                    im[p] += ti;
+                }
+            }
+        }
+    }
+
+
+    // radix 4 decimation in time; after bit reversal the four length-m
+    // sub-transforms of each length-4m group lie in the order 0, 2, 1, 3
+    static void radix4(double[] re, double[] im) {
+        int n = re.length;
+        bitReverse(re, im);
+        fastCorr.Twiddles w = fastCorr.twiddles(n);
+        double[] cos = w.cos;
+        double[] sin = w.sin;
+        int half = n / 2;
+
+        int m = 1;
+        if ((Integer.numberOfTrailingZeros(n) & 1) == 1) {
+            for (int s = 0; s < n; s += 2) {
+                double tr = re[s + 1];
+                double ti = im[s + 1];
+                re[s + 1] = re[s] - tr;
+                im[s + 1] = im[s] - ti;
+                re[s] += tr;
+                im[s] += ti;
+            }
+            m = 2;
+        }
+
+        for (; m < n; m *= 4) {
+            int step = n / (4*m);
+            for (int s = 0; s < n; s += 4*m) {
+                for (int k = 0; k < m; k++) {
+                    int p0 = s + k;
+                    int p1 = p0 + m;
+                    int p2 = p1 + m;
+                    int p3 = p2 + m;
+
+                    // twiddles W^k, W^2k, W^3k; W^j = -W^(j - n/2) past the table
+                    int j1 = k * step;
+                    int j2 = 2 * j1;
+                    int j3 = 3 * j1;
+                    double w1r = cos[j1], w1i = sin[j1];
+                    double w2r = cos[j2], w2i = sin[j2];
+                    double w3r, w3i;
+                    if (j3 < half) { w3r = cos[j3];         w3i = sin[j3]; }
+                    else           { w3r = -cos[j3 - half]; w3i = -sin[j3 - half]; }
+
+                    double t1r = w1r * re[p2] - w1i * im[p2];
+                    double t1i = w1r * im[p2] + w1i * re[p2];
+                    double t2r = w2r * re[p1] - w2i * im[p1];
+                    double t2i = w2r * im[p1] + w2i * re[p1];
+                    double t3r = w3r * re[p3] - w3i * im[p3];
+                    double t3i = w3r * im[p3] + w3i * re[p3];
+
+                    double ar = re[p0] + t2r, ai = im[p0] + t2i;
+                    double br = re[p0] - t2r, bi = im[p0] - t2i;
+                    double cr = t1r + t3r,    ci = t1i + t3i;
+                    double dr = t1r - t3r,    di = t1i - t3i;
+
+                    re[p0] = ar + cr;  im[p0] = ai + ci;
+                    re[p2] = ar - cr;  im[p2] = ai - ci;
+                    re[p1] = br + di;  im[p1] = bi - dr;     // b - i d
+                    re[p3] = br - di;  im[p3] = bi + dr;     // b + i d
+                }
+            }
+        }
+    }
+
+
+    // split radix decimation in frequency (H. V. Sorensen, M. T. Heideman
+    // and C. S. Burrus, 1986), followed by bit reversal
+    static void splitRadix(double[] x, double[] y) {
+        int n = x.length;
+        fastCorr.Twiddles w = fastCorr.twiddles(n);
+        double[] cos = w.cos;
+        double[] sin = w.sin;
+        int half = n / 2;
+        int stages = Integer.numberOfTrailingZeros(n);
+
+        int n2 = 2 * n;
+        for (int stage = 1; stage < stages; stage++) {
+            n2 /= 2;
+            int n4 = n2 / 4;
+            int step = n / n2;
+            for (int j = 0; j < n4; j++) {
+                // cos and sin of a = 2 pi j / n2 and of 3a
+                int j1 = j * step;
+                int j3 = 3 * j1;
+                double cc1 = cos[j1];
+                double ss1 = -sin[j1];
+                double cc3, ss3;
+                if (j3 < half) { cc3 = cos[j3];         ss3 = -sin[j3]; }
+                else           { cc3 = -cos[j3 - half]; ss3 = sin[j3 - half]; }
+
+                int is = j;
+                int id = 2 * n2;
+                do {
+                    for (int i0 = is; i0 < n - 1; i0 += id) {
+                        int i1 = i0 + n4;
+                        int i2 = i1 + n4;
+                        int i3 = i2 + n4;
+                        double r1 = x[i0] - x[i2];
+                        x[i0] += x[i2];
+                        double r2 = x[i1] - x[i3];
+                        x[i1] += x[i3];
+                        double s1 = y[i0] - y[i2];
+                        y[i0] += y[i2];
+                        double s2 = y[i1] - y[i3];
+                        y[i1] += y[i3];
+                        double s3 = r1 - s2;
+                        r1 += s2;
+                        s2 = r2 - s1;
+                        r2 += s1;
+                        x[i2] = r1 * cc1 - s2 * ss1;
+                        y[i2] = -s2 * cc1 - r1 * ss1;
+                        x[i3] = s3 * cc3 + r2 * ss3;
+                        y[i3] = r2 * cc3 - s3 * ss3;
+                    }
+                    is = 2 * id - n2 + j;
+                    id = 4 * id;
+                } while (is < n - 1);
+            }
+        }
+
+        // length 2 butterflies
+        int is = 0;
+        int id = 4;
+        do {
+            for (int i0 = is; i0 < n - 1; i0 += id) {
+                int i1 = i0 + 1;
+                double r1 = x[i0];
+                x[i0] = r1 + x[i1];
+                x[i1] = r1 - x[i1];
+                r1 = y[i0];
+                y[i0] = r1 + y[i1];
+                y[i1] = r1 - y[i1];
+            }
+            is = 2 * id - 2;
+            id = 4 * id;
+        } while (is < n - 1);
+
+        bitReverse(x, y);
+    }
+
+
+    // sample client: measure sizes 2^1 to 2^16, check each kernel against
+    // radix 2, and save the wisdom
+    public static void main(String[] args) throws IOException {
+        File file = args.length > 0 ? new File(args[0]) : wisdomFile();
+        System.out.println("     n  kernel        max error vs radix 2");
+        for (int n = 2; n <= (1 << 16); n *= 2) {
+            Kernel best = measure(n);
+
+            double err = 0.0;
+            double[] re0 = new double[n];
+            double[] im0 = new double[n];
+            for (int i = 0; i < n; i++) {
+                re0[i] = Math.random() - 0.5;
+                im0[i] = Math.random() - 0.5;
+            }
+            double[] re1 = re0.clone();
+            double[] im1 = im0.clone();
+            radix2(re0, im0);
+            for (Kernel k : Kernel.values()) {
+                double[] re = re1.clone();
+                double[] im = im1.clone();
+                k.transform(re, im);
+                for (int i = 0; i < n; i++) {
+                    err = Math.max(err, Math.hypot(re[i] - re0[i], im[i] - im0[i]));
+                }
+            }
+            System.out.printf("%6d  %-12s  %s\n", n, best, err);
+        }
+        saveWisdom(file);
+        System.out.println("wisdom saved to " + file);
+    }
+
+}
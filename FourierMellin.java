@@ -0,0 +1,289 @@
+/******************************************************************************
+ *  Compilation:  javac FourierMellin.java
+ *  Execution:    java FourierMellin image1.png
+ *
+ *  Rotation- and scale-tolerant registration by the Fourier-Mellin
+ *  transform.
+ *
+ *  The magnitude of a 2D spectrum does not depend on translation, and
+ *  rotating or scaling an image rotates or (inversely) scales its
+ *  magnitude spectrum. Resampling the magnitude spectrum onto a
+ *  log-polar grid turns both into plain shifts, so a single phase
+ *  correlation of the two log-polar images recovers the rotation
+ *  angle and the scale factor.
+ *
+ *  The log-polar resampling tables depend only on the spectrum size,
+ *  so they are built once per size and cached.
+ *
+ *  % java FourierMellin image1.png
+ *  applied      rotation = 20.0, scale = 1.1
+ *  recovered    rotation = 20.0390625, scale = 1.1023067430847058
+ *
+ ******************************************************************************/
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FourierMellin {
+
+    // log-polar resampling tables, one per spectrum size
+    private static final Map<Integer, LogPolarTable> TABLES = new HashMap<Integer, LogPolarTable>();
+
+    private final double rotation;   // rotation of scene relative to template, in degrees
+    private final double scale;      // scale of scene relative to template
+    private final double response;   // height of the phase correlation peak
+
+    private FourierMellin(double rotation, double scale, double response) {
+        this.rotation = rotation;
+        this.scale    = scale;
+        this.response = response;
+    }
+
+    // return the clockwise rotation in degrees (image coordinates, y down),
+    // in the range [-90, 90); a magnitude spectrum is symmetric, so
+    // rotations 180 degrees apart cannot be told apart
+    public double rotation() { return rotation; }
+
+    // return the scale factor
+    public double scale() { return scale; }
+
+    // return the phase correlation peak height (1.0 for a perfect match)
+    public double response() { return response; }
+
+    public String toString() {
+        return "rotation = " + rotation + ", scale = " + scale;
+    }
+
+
+    // estimate the rotation and scale of the scene relative to the template
+    // from their (unconjugated) 2D spectra, as computed by fastCorr.fft2;
+    // both spectra must be square and of the same power-of-2 size
+    public static FourierMellin register(Complex[][] scene, Complex[][] template) {
+        int n = scene.length;
+        if (template.length != n || scene[0].length != n || template[0].length != n) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+
+        return register(magnitude(scene), magnitude(template), n);
+    }
+
+
+    // estimate the rotation and scale from n-by-n row-major spectra held
+    // as split arrays, as computed by BatchFFT.fft2
+    public static FourierMellin register(double[] sceneRe, double[] sceneIm,
+                                         double[] templateRe, double[] templateIm, int n) {
+        if (sceneRe.length != n * n || sceneIm.length != n * n
+            || templateRe.length != n * n || templateIm.length != n * n) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+        return register(magnitude(sceneRe, sceneIm, n), magnitude(templateRe, templateIm, n), n);
+    }
+
+
+    // phase-correlate the log-polar resamplings of two n-by-n magnitude
+    // spectra from magnitude()
+    private static FourierMellin register(double[][] sceneMagnitude, double[][] templateMagnitude, int n) {
+        LogPolarTable table = table(n);
+        Complex[][] a = fastCorr.fft2(table.resample(sceneMagnitude));
+        Complex[][] b = fastCorr.fft2(table.resample(templateMagnitude));
+
+        // normalized cross-power spectrum
+        Complex[][] r = new Complex[n][n];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                Complex c = a[j][i].times(b[j][i].conjugate());
+                double abs = c.abs();
+                r[j][i] = abs > 0 ? c.scale(1.0 / abs) : c;
+            }
+        }
+        Complex[][] surface = fastCorr.ifft2(r);
+
+        // locate the peak: rows are angle, columns are log-radius
+        int peakRow = 0, peakCol = 0;
+        double peak = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                if (surface[j][i].re() > peak) {
+                    peak = surface[j][i].re();
+                    peakRow = j;
+                    peakCol = i;
+                }
+            }
+        }
+
+        // shifts wrap around, so fold them into [-n/2, n/2)
+        int dTheta = peakRow >= n/2 ? peakRow - n : peakRow;
+        int dRho   = peakCol >= n/2 ? peakCol - n : peakCol;
+
+        // magnitude spectra have period 180 degrees along the angle axis;
+        // scaling the image by s scales its spectrum by 1/s
+        double rotation = 180.0 * dTheta / n;
+        double scale = Math.exp(-dRho * table.logStep);
+        return new FourierMellin(rotation, scale, peak);
+    }
+
+
+    // estimate the rotation and scale of scene relative to template from images
+    public static FourierMellin register(rendImage scene, rendImage template) {
+        return register(fastCorr.fft2(toComplex(scene)), fastCorr.fft2(toComplex(template)));
+    }
+
+
+    // return the cached log-polar table for n-by-n spectra
+    private static LogPolarTable table(int n) {
+        synchronized (TABLES) {
+            LogPolarTable table = TABLES.get(n);
+            if (table == null) {
+                table = new LogPolarTable(n);
+                TABLES.put(n, table);
+            }
+            return table;
+        }
+    }
+
+
+    // return the high-pass filtered, centered log magnitude of the spectrum x[][]
+    private static double[][] magnitude(Complex[][] x) {
+        int n = x.length;
+        double[][] m = new double[n][n];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                magnitude(m, j, i, x[j][i].abs());
+            }
+        }
+        return m;
+    }
+
+    // the same for the row-major n-by-n spectrum in re[] and im[]
+    private static double[][] magnitude(double[] re, double[] im, int n) {
+        double[][] m = new double[n][n];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                magnitude(m, j, i, Math.hypot(re[j*n + i], im[j*n + i]));
+            }
+        }
+        return m;
+    }
+
+    // store the filtered log magnitude abs of frequency (j, i) in m[][]
+    private static void magnitude(double[][] m, int j, int i, double abs) {
+        int n = m.length;
+        int v = (j + n/2) % n;           // fftshift
+        int u = (i + n/2) % n;
+        double fy = Math.cos(Math.PI * (v - n/2) / n);
+        double fx = Math.cos(Math.PI * (u - n/2) / n);
+        double h = fx * fy;
+        // suppress low frequencies, which dominate and carry little
+        // rotation information (Reddy and Chatterji, 1996)
+        double highPass = (1.0 - h) * (2.0 - h);
+        m[v][u] = highPass * Math.log1p(abs);
+    }
+
+
+    // bilinear resampling table from a centered n-by-n grid to log-polar
+    // coordinates: n angles over [0, pi) by n log-spaced radii in [1, n/2)
+    private static final class LogPolarTable {
+        private final int n;
+        private final int[] index;       // top-left source pixel, row-major
+        private final double[] wx;       // horizontal interpolation weight
+        private final double[] wy;       // vertical interpolation weight
+        private final double logStep;    // log-radius increment per column
+
+        LogPolarTable(int n) {
+            this.n = n;
+            index = new int[n*n];
+            wx = new double[n*n];
+            wy = new double[n*n];
+            logStep = Math.log(n / 2.0 - 1) / n;
+
+            double c = n / 2.0;
+            for (int t = 0; t < n; t++) {
+                double theta = Math.PI * t / n;
+                double cos = Math.cos(theta);
+                double sin = Math.sin(theta);
+                for (int r = 0; r < n; r++) {
+                    double rho = Math.exp(r * logStep);
+                    double x = c + rho * cos;
+                    double y = c + rho * sin;
+                    int x0 = Math.min((int) Math.floor(x), n - 2);
+                    int y0 = Math.min((int) Math.floor(y), n - 2);
+                    int k = t*n + r;
+                    index[k] = y0*n + x0;
+                    wx[k] = x - x0;
+                    wy[k] = y - y0;
+                }
+            }
+        }
+
+        // resample the centered n-by-n grid m[][] to log-polar coordinates
+        Complex[][] resample(double[][] m) {
+            Complex[][] lp = new Complex[n][n];
+            for (int t = 0; t < n; t++) {
+                for (int r = 0; r < n; r++) {
+                    int k = t*n + r;
+                    int y0 = index[k] / n;
+                    int x0 = index[k] % n;
+                    double top    = m[y0][x0]     * (1 - wx[k]) + m[y0][x0 + 1]     * wx[k];
+                    double bottom = m[y0 + 1][x0] * (1 - wx[k]) + m[y0 + 1][x0 + 1] * wx[k];
+                    lp[t][r] = new Complex(top * (1 - wy[k]) + bottom * wy[k], 0);
+                }
+            }
+            return lp;
+        }
+    }
+
+
+    // return the red channel of the picture as a complex matrix
+    private static Complex[][] toComplex(rendImage picture) {
+        int w = picture.width();
+        int h = picture.height();
+        Complex[][] x = new Complex[h][w];
+        for (int i = 0; i < w; i++) {
+            for (int j = 0; j < h; j++) {
+                x[j][i] = new Complex(picture.get(i, j).getRed(), 0);
+            }
+        }
+        return x;
+    }
+
+
+    // sample client for testing: rotate and scale a picture about its
+    // center, then recover the transformation
+    public static void main(String[] args) {
+        rendImage template = new rendImage(args.length > 0 ? args[0] : "image1.png");
+        double degrees = 20.0;
+        double factor  = 1.1;
+
+        int w = template.width();
+        int h = template.height();
+        BufferedImage src = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < w; i++)
+            for (int j = 0; j < h; j++)
+                src.setRGB(i, j, template.get(i, j).getRGB());
+
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform at = new AffineTransform();
+        at.translate(w / 2.0, h / 2.0);
+        at.rotate(Math.toRadians(degrees));
+        at.scale(factor, factor);
+        at.translate(-w / 2.0, -h / 2.0);
+        g.drawImage(src, at, null);
+        g.dispose();
+
+        rendImage scene = new rendImage(w, h);
+        for (int i = 0; i < w; i++)
+            for (int j = 0; j < h; j++)
+                scene.set(i, j, new Color(dst.getRGB(i, j)));
+
+        System.out.println("applied      rotation = " + degrees + ", scale = " + factor);
+        System.out.println("recovered    " + register(scene, template));
+    }
+
+}
@@ -0,0 +1,401 @@
+/******************************************************************************
+ *  Compilation:  javac MatchService.java
+ *  Execution:    java MatchService [port] [compute threads] [queue capacity]
+ *                                [cache MB] [cache file] [template library]
+ *
+ *  A long-running local template matching service over HTTP on the
+ *  loopback interface.
+ *
+ *  Templates are registered once and keep their spectra in memory, and
+ *  the FFT twiddle tables and plans stay warm between requests, so a
+ *  match costs one scene transform, one product and one inverse
+ *  transform instead of a JVM start per job.
+ *
+ *  Each HTTP request runs on its own virtual thread when the JVM
+ *  provides them (Java 21 and later) and on a cached platform thread
+ *  otherwise; request threads only read, decode and wait. The FFT work
+ *  runs on a fixed pool of compute threads behind a bounded queue, and
+ *  requests that find the queue full are refused with 503 rather than
+ *  piling up. Results are kept in a ResultCache keyed by the scene's
+ *  pixels, so a resubmitted frame is answered without any FFT work.
+ *  Templates can also come from a TemplateLibrary file, whose stored
+ *  spectra are loaded on first use instead of being recomputed.
+ *
+ *    PUT  /templates/{id}   body: PNG or JPEG   register a template
+ *                           ?precision=fixed    match it on the fixed-point path
+ *    POST /match/{id}       body: PNG or JPEG   {"x":..,"y":..,"value":..,"score":..}
+ *    GET  /metrics                              queue depth and counters
+ *
+ *  % java MatchService 8080 &
+ *  % curl -T image2.png localhost:8080/templates/pulse
+ *  % curl --data-binary @image1.png localhost:8080/match/pulse
+ *  {"x":220,"y":159,"value":7.9200448E8,"score":7.0711759092380415,"micros":214770}
+ *  % curl --data-binary @image1.png localhost:8080/match/pulse
+ *  {"x":220,"y":159,"value":7.9200448E8,"score":7.0711759092380415,"micros":8971}
+ *
+ ******************************************************************************/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+public class MatchService {
+    // template ids are path segments and appear in JSON, so keep them plain
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private final HttpServer server;
+    private final ExecutorService requests;       // one thread per request
+    private final ThreadPoolExecutor compute;     // bounded FFT workers
+    private final Map<String, Template> templates = new ConcurrentHashMap<String, Template>();
+    private volatile ResultCache cache;           // null if results are not cached
+    private volatile TemplateLibrary library;     // templates loaded on first use, or null
+
+    private final AtomicLong matched  = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed   = new AtomicLong();
+    private final AtomicLong computeNanos = new AtomicLong();
+    private final AtomicLong waitNanos    = new AtomicLong();
+
+    // create a service on the loopback port with the given number of
+    // compute threads and at most queueCapacity matches waiting for one
+    public MatchService(int port, int threads, int queueCapacity) throws IOException {
+        compute = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                         new ThreadPoolExecutor.AbortPolicy());
+        requests = requestExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requests);
+        server.createContext("/templates/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException { putTemplate(ex); }
+        });
+        server.createContext("/match/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException { match(ex); }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException { metrics(ex); }
+        });
+    }
+
+    // start accepting requests
+    public void start() {
+        server.start();
+    }
+
+    // stop accepting requests, wait up to delay seconds for open ones, and
+    // shut down the thread pools
+    public void stop(int delay) {
+        server.stop(delay);
+        requests.shutdown();
+        compute.shutdown();
+    }
+
+    // return the port the service is listening on
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // serve repeated scene/template pairs from the given cache
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    // serve templates not registered over HTTP from the library, loading
+    // each one's stored spectra the first time it is matched
+    public void setLibrary(TemplateLibrary library) {
+        this.library = library;
+    }
+
+    // register a template directly, bypassing HTTP
+    public void addTemplate(Template t) {
+        templates.put(t.id(), t);
+    }
+
+
+    // a virtual thread per task if this JVM has them, else a cached pool
+    private static ExecutorService requestExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+
+    // PUT /templates/{id}
+    private void putTemplate(HttpExchange ex) throws IOException {
+        if (!ex.getRequestMethod().equals("PUT") && !ex.getRequestMethod().equals("POST")) {
+            reply(ex, 405, "{\"error\":\"use PUT\"}");
+            return;
+        }
+        String id = lastSegment(ex);
+        if (!ID.matcher(id).matches()) {
+            reply(ex, 400, "{\"error\":\"template ids are letters, digits, '.', '_' and '-'\"}");
+            return;
+        }
+        BufferedImage image = decode(ex);
+        if (image == null) {
+            reply(ex, 400, "{\"error\":\"expected /templates/{id} and an image body\"}");
+            return;
+        }
+        final Template t = new Template(id, image);
+        String query = ex.getRequestURI().getQuery();
+        t.setFixedPoint(query != null && query.contains("precision=fixed"));
+
+        // precompute the spectrum at the template's own padded size
+        try {
+            submit(new Callable<Object>() {
+                public Object call() {
+                    int size = Correlator.paddedSize(t.width(), t.height());
+                    return t.isFixedPoint() ? t.fixedSpectrum(size) : t.spectrum(size);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            busy(ex);
+            return;
+        }
+        catch (ExecutionException e) {
+            failed.incrementAndGet();
+            reply(ex, 500, "{\"error\":" + json(message(e.getCause())) + "}");
+            return;
+        }
+        templates.put(id, t);
+        reply(ex, 201, "{\"id\":" + json(id) + ",\"width\":" + t.width() + ",\"height\":" + t.height() + "}");
+    }
+
+
+    // POST /match/{id}
+    private void match(HttpExchange ex) throws IOException {
+        if (!ex.getRequestMethod().equals("POST")) {
+            reply(ex, 405, "{\"error\":\"use POST\"}");
+            return;
+        }
+        String id = lastSegment(ex);
+        if (!ID.matcher(id).matches()) {
+            reply(ex, 400, "{\"error\":\"template ids are letters, digits, '.', '_' and '-'\"}");
+            return;
+        }
+        final Template t;
+        try {
+            t = template(id);
+        }
+        catch (IOException | RuntimeException e) {
+            // a library entry that cannot be read or is corrupt; reply
+            // rather than leave the exchange open
+            failed.incrementAndGet();
+            reply(ex, 500, "{\"error\":" + json(message(e)) + "}");
+            return;
+        }
+        if (t == null) {
+            reply(ex, 404, "{\"error\":\"no such template\"}");
+            return;
+        }
+        final BufferedImage image = decode(ex);
+        if (image == null) {
+            reply(ex, 400, "{\"error\":\"expected an image body\"}");
+            return;
+        }
+
+        long start = System.nanoTime();
+        ResultCache c = cache;
+        String key = null;
+        Correlator.Peak p = null;
+        if (c != null) {
+            // fixed and double precision peaks differ, so they are cached apart
+            key = ResultCache.key(image, t, t.isFixedPoint() ? "fixed" : "double");
+            p = c.getPeak(key);
+        }
+        if (p == null) {
+            try {
+                p = submit(new Callable<Correlator.Peak>() {
+                    public Correlator.Peak call() {
+                        return Correlator.match(Correlator.red(image), image.getWidth(), image.getHeight(), t);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                busy(ex);
+                return;
+            }
+            catch (ExecutionException e) {
+                failed.incrementAndGet();
+                reply(ex, 400, "{\"error\":" + json(message(e.getCause())) + "}");
+                return;
+            }
+            if (c != null) c.putPeak(key, p);
+        }
+        matched.incrementAndGet();
+        long micros = (System.nanoTime() - start) / 1000;
+        reply(ex, 200, "{\"x\":" + p.x() + ",\"y\":" + p.y() + ",\"value\":" + (float) p.value()
+                     + ",\"score\":" + p.score() + ",\"micros\":" + micros + "}");
+    }
+
+
+    // return the registered template with the given id, falling back to
+    // the library; null if neither has it
+    private Template template(String id) throws IOException {
+        Template t = templates.get(id);
+        TemplateLibrary lib = library;
+        if (t == null && lib != null) {
+            t = lib.get(id);
+            if (t != null) templates.putIfAbsent(id, t);
+        }
+        return t;
+    }
+
+
+    // GET /metrics
+    private void metrics(HttpExchange ex) throws IOException {
+        long done = compute.getCompletedTaskCount();
+        StringBuilder sb = new StringBuilder();
+        sb.append("templates ").append(templates.size()).append('\n');
+        sb.append("compute_threads ").append(compute.getMaximumPoolSize()).append('\n');
+        sb.append("compute_active ").append(compute.getActiveCount()).append('\n');
+        sb.append("queue_depth ").append(compute.getQueue().size()).append('\n');
+        sb.append("queue_capacity ").append(compute.getQueue().size()
+                                            + compute.getQueue().remainingCapacity()).append('\n');
+        sb.append("tasks_completed ").append(done).append('\n');
+        sb.append("matches ").append(matched.get()).append('\n');
+        sb.append("rejected ").append(rejected.get()).append('\n');
+        sb.append("failed ").append(failed.get()).append('\n');
+        sb.append("mean_queue_wait_ms ").append(done == 0 ? 0.0 : waitNanos.get() / 1e6 / done).append('\n');
+        sb.append("mean_compute_ms ").append(done == 0 ? 0.0 : computeNanos.get() / 1e6 / done).append('\n');
+        ResultCache c = cache;
+        if (c != null) {
+            sb.append("cache_entries ").append(c.size()).append('\n');
+            sb.append("cache_bytes ").append(c.bytes()).append('\n');
+            sb.append("cache_memory_hits ").append(c.memoryHits()).append('\n');
+            sb.append("cache_disk_hits ").append(c.diskHits()).append('\n');
+            sb.append("cache_misses ").append(c.misses()).append('\n');
+            sb.append("cache_hit_rate ").append(c.hitRate()).append('\n');
+        }
+        reply(ex, 200, sb.toString());
+    }
+
+
+    // run the task on the compute pool, timing queue wait and compute, and
+    // block the calling request thread until it is done
+    private <T> T submit(final Callable<T> task) throws ExecutionException {
+        final long queued = System.nanoTime();
+        Future<T> f = compute.submit(new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                waitNanos.addAndGet(start - queued);
+                try { return task.call(); }
+                finally { computeNanos.addAndGet(System.nanoTime() - start); }
+            }
+        });
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+
+    private void busy(HttpExchange ex) throws IOException {
+        rejected.incrementAndGet();
+        ex.getResponseHeaders().set("Retry-After", "1");
+        reply(ex, 503, "{\"error\":\"compute queue full\"}");
+    }
+
+
+    private static String lastSegment(HttpExchange ex) {
+        String path = ex.getRequestURI().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+
+    // return the exception's message, or its class if it has none
+    private static String message(Throwable e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    // return s as a quoted JSON string
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if      (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n')             sb.append("\\n");
+            else if (c < 0x20)              sb.append(String.format("\\u%04x", (int) c));
+            else                            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+
+    private static BufferedImage decode(HttpExchange ex) {
+        InputStream in = ex.getRequestBody();
+        try { return ImageIO.read(in); }
+        catch (IOException e) { return null; }
+    }
+
+
+    private static void reply(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type",
+                                    body.startsWith("{") ? "application/json" : "text/plain");
+        ex.sendResponseHeaders(status, bytes.length);
+        OutputStream out = ex.getResponseBody();
+        try { out.write(bytes); }
+        finally { out.close(); }
+    }
+
+
+    // run the service until the process is killed
+    public static void main(String[] args) throws IOException {
+        int port     = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads  = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 4 * threads;
+        long cacheMB = args.length > 3 ? Long.parseLong(args[3]) : 64;
+        final MatchService service = new MatchService(port, threads, capacity);
+        if (args.length > 4 && !args[4].isEmpty()) {
+            service.setCache(new ResultCache(cacheMB << 20, new File(args[4]), 1 << 16, 64));
+        }
+        else {
+            service.setCache(new ResultCache(cacheMB << 20));
+        }
+        if (args.length > 5) {
+            TemplateLibrary lib = TemplateLibrary.open(new File(args[5]));
+            service.setLibrary(lib);
+            System.out.println(lib.size() + " templates in " + args[5]);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() { service.stop(1); }
+        });
+        service.start();
+        System.out.println("matching on http://localhost:" + service.port()
+                         + " with " + threads + " compute threads");
+    }
+
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ *  Compilation:  javac PartitionedConvolver.java
+ *  Execution:    java PartitionedConvolver
+ *
+ *  Uniformly partitioned overlap-save convolution of a stream with a
+ *  long filter.
+ *
+ *  The filter is cut into P partitions of blockSize taps, and each is
+ *  transformed once at FFT size 2 * blockSize. The spectra of the last
+ *  P input blocks are kept in a frequency-domain delay line; each new
+ *  block costs one forward FFT, P pointwise multiply-accumulates and
+ *  one inverse FFT. The latency is one block regardless of the filter
+ *  length, and the FFT work stays that of a 2 * blockSize transform.
+ *
+ *  % java PartitionedConvolver
+ *  partitions = 79, fft size = 256
+ *  max |partitioned - direct| = 1.0835776720341528E-13
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+public class PartitionedConvolver {
+    private final int blockSize;      // samples in and out per step
+    private final int n;              // FFT size, 2 * blockSize
+    private final int partitions;     // number of filter partitions
+    private final double[][] hre;     // partition spectra
+    private final double[][] him;
+    private final double[][] xre;     // frequency-domain delay line of input blocks
+    private final double[][] xim;
+    private final double[] window;    // previous and current input block
+    private final double[] accRe;     // spectral accumulator
+    private final double[] accIm;
+    private int newest;               // delay line slot of the newest block
+
+    // create a convolver with the filter h[]; blockSize must be a power of 2
+    public PartitionedConvolver(double[] h, int blockSize) {
+        if (Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("blockSize is not a power of 2");
+        }
+        if (h.length == 0) {
+            throw new IllegalArgumentException("filter is empty");
+        }
+        this.blockSize = blockSize;
+        this.n = 2 * blockSize;
+        this.partitions = (h.length + blockSize - 1) / blockSize;
+
+        hre = new double[partitions][n];
+        him = new double[partitions][n];
+        for (int p = 0; p < partitions; p++) {
+            int from = p * blockSize;
+            int len = Math.min(blockSize, h.length - from);
+            System.arraycopy(h, from, hre[p], 0, len);
+            fastCorr.fft(hre[p], him[p]);
+        }
+
+        xre = new double[partitions][n];
+        xim = new double[partitions][n];
+        window = new double[n];
+        accRe = new double[n];
+        accIm = new double[n];
+    }
+
+    // return the number of samples consumed and produced per step
+    public int blockSize() { return blockSize; }
+
+    // return the number of filter partitions
+    public int partitions() { return partitions; }
+
+
+    // convolve one block: read blockSize samples from in[] at offset inOff
+    // and write the corresponding blockSize output samples to out[] at outOff
+    public void process(double[] in, int inOff, double[] out, int outOff) {
+        // slide the input window and transform it into the delay line
+        System.arraycopy(window, blockSize, window, 0, blockSize);
+        System.arraycopy(in, inOff, window, blockSize, blockSize);
+        newest = (newest + 1) % partitions;
+        double[] fr = xre[newest];
+        double[] fi = xim[newest];
+        System.arraycopy(window, 0, fr, 0, n);
+        Arrays.fill(fi, 0.0);
+        fastCorr.fft(fr, fi);
+
+        // accumulate partition p against the input block from p steps ago
+        Arrays.fill(accRe, 0.0);
+        Arrays.fill(accIm, 0.0);
+        for (int p = 0; p < partitions; p++) {
+            int slot = (newest - p + partitions) % partitions;
+            ComplexVector.multiplyAdd(accRe, accIm, xre[slot], xim[slot], hre[p], him[p], 0, n);
+        }
+
+        fastCorr.ifft(accRe, accIm);
+
+        // the second half of the circular result is the valid linear output
+        System.arraycopy(accRe, blockSize, out, outOff, blockSize);
+    }
+
+
+    // sample client for testing: convolve a random signal with a
+    // 10,000-tap filter block by block and compare against direct convolution
+    public static void main(String[] args) {
+        int taps = 10000;
+        int blockSize = 128;
+        int blocks = 200;
+        double[] h = new double[taps];
+        double[] x = new double[blocks * blockSize];
+        for (int i = 0; i < taps; i++)     h[i] = (Math.random() - 0.5) * Math.exp(-i / 2000.0);
+        for (int i = 0; i < x.length; i++) x[i] = Math.random() - 0.5;
+
+        PartitionedConvolver pc = new PartitionedConvolver(h, blockSize);
+        double[] y = new double[x.length];
+        for (int b = 0; b < blocks; b++) {
+            pc.process(x, b * blockSize, y, b * blockSize);
+        }
+
+        double err = 0.0;
+        for (int t = 0; t < x.length; t++) {
+            double sum = 0.0;
+            for (int k = 0; k <= t && k < taps; k++) sum += h[k] * x[t - k];
+            err = Math.max(err, Math.abs(sum - y[t]));
+        }
+        System.out.println("partitions = " + pc.partitions() + ", fft size = " + 2 * blockSize);
+        System.out.println("max |partitioned - direct| = " + err);
+    }
+
+}
@@ -0,0 +1,334 @@
+/******************************************************************************
+ *  Compilation:  javac ResultCache.java
+ *  Execution:    java ResultCache image1.png image2.png
+ *
+ *  Content-addressed cache of correlation results.
+ *
+ *  A result is keyed by a 64-bit hash of the scene's pixel raster and its
+ *  size, the template's id and content hash, and any parameters that
+ *  change the result. Resubmitted frames (retries, duplicate feeds) then
+ *  return without any FFT work.
+ *
+ *  There are two tiers:
+ *
+ *    memory  LRU over a byte budget; values are byte arrays
+ *    disk    optional memory-mapped file of fixed-size slots, addressed
+ *            directly by key hash; a colliding put overwrites the slot,
+ *            and each slot records the 64-bit hash of its full key so a
+ *            reader does not return another key's value
+ *
+ *  A memory miss falls through to disk, and a disk hit is promoted back
+ *  to memory. getPeak() and putPeak() store Correlator.Peak values.
+ *
+ *  % java ResultCache image1.png image2.png
+ *  first match   peak at (x, y) = (220, 159), ..., 274.450745 ms
+ *  second match  peak at (x, y) = (220, 159), ..., 10.135814 ms
+ *  hits = 1, misses = 1, hit rate = 0.5
+ *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ResultCache {
+
+    // bookkeeping bytes charged per memory entry on top of key and value
+    private static final int ENTRY_OVERHEAD = 96;
+
+    // disk slot header: key hash (8), value length (4)
+    private static final int SLOT_HEADER = 12;
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+
+    private final long budget;                  // memory tier byte budget
+    private final LinkedHashMap<String, byte[]> memory =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long bytes;                         // bytes charged to the memory tier
+
+    private final MappedByteBuffer disk;        // null if no disk tier
+    private final int slotSize;
+    private final int slots;
+
+    private long memoryHits;
+    private long diskHits;
+    private long misses;
+
+    // create a memory-only cache holding at most budget bytes
+    public ResultCache(long budget) {
+        this.budget = budget;
+        this.disk = null;
+        this.slotSize = 0;
+        this.slots = 0;
+    }
+
+    // create a cache with a memory tier of budget bytes backed by a
+    // memory-mapped file of slots entries of up to slotSize bytes each;
+    // an existing file of the same geometry is reused
+    public ResultCache(long budget, File file, int slots, int slotSize) throws IOException {
+        if ((long) slots * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("disk tier larger than 2GB");
+        }
+        this.budget = budget;
+        this.slots = slots;
+        this.slotSize = slotSize;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long) slots * slotSize);
+            disk = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * slotSize);
+        }
+        finally { raf.close(); }
+    }
+
+
+    // return a key for a scene raster (ARGB ints, row-major), a template
+    // and the parameters of the match
+    public static String key(int[] raster, int width, int height, Template t, String params) {
+        return key(hash(raster), width, height, t, params);
+    }
+
+    // return a key for a scene image, a template and the parameters of the
+    // match; the image's own data buffer is hashed when it is an int or
+    // byte raster, which avoids converting every pixel to ARGB
+    public static String key(BufferedImage scene, Template t, String params) {
+        int w = scene.getWidth();
+        int h = scene.getHeight();
+        DataBuffer db = scene.getRaster().getDataBuffer();
+        boolean whole = db.getNumBanks() == 1 && scene.getRaster().getParent() == null;
+        long hash;
+        if (whole && db instanceof DataBufferInt) {
+            hash = hash(((DataBufferInt) db).getData()) ^ scene.getType();
+        }
+        else if (whole && db instanceof DataBufferByte) {
+            hash = hash(((DataBufferByte) db).getData()) ^ scene.getType();
+        }
+        else {
+            return key(hash(scene.getRGB(0, 0, w, h, null, 0, w)), w, h, t, params);
+        }
+
+        // indexed pixels mean nothing without their palette
+        if (scene.getColorModel() instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) scene.getColorModel();
+            int[] palette = new int[icm.getMapSize()];
+            icm.getRGBs(palette);
+            hash = 31 * hash + hash(palette);
+        }
+        return key(hash, w, h, t, params);
+    }
+
+    private static String key(long hash, int width, int height, Template t, String params) {
+        return Long.toHexString(hash) + ':' + width + 'x' + height + ':'
+             + t.id() + ':' + Long.toHexString(t.fingerprint()) + ':' + params;
+    }
+
+
+    // return the value cached under key, or null
+    public synchronized byte[] get(String key) {
+        byte[] v = memory.get(key);
+        if (v != null) {
+            memoryHits++;
+            return v;
+        }
+        v = readDisk(key);
+        if (v != null) {
+            diskHits++;
+            putMemory(key, v);
+            return v;
+        }
+        misses++;
+        return null;
+    }
+
+
+    // cache value under key in both tiers
+    public synchronized void put(String key, byte[] value) {
+        putMemory(key, value);
+        writeDisk(key, value);
+    }
+
+
+    // return the peak cached under key, or null
+    public Correlator.Peak getPeak(String key) {
+        byte[] v = get(key);
+        if (v == null) return null;
+        ByteBuffer b = ByteBuffer.wrap(v);
+        return new Correlator.Peak(b.getInt(), b.getInt(), b.getDouble(), b.getDouble(), b.getDouble());
+    }
+
+
+    // cache the peak under key
+    public void putPeak(String key, Correlator.Peak p) {
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.putInt(p.x()).putInt(p.y()).putDouble(p.value()).putDouble(p.mean()).putDouble(p.stddev());
+        put(key, b.array());
+    }
+
+
+    public synchronized long memoryHits() { return memoryHits; }
+    public synchronized long diskHits()   { return diskHits; }
+    public synchronized long misses()     { return misses; }
+    public synchronized long bytes()      { return bytes; }
+    public synchronized int size()        { return memory.size(); }
+
+    // return the fraction of lookups served from either tier
+    public synchronized double hitRate() {
+        long lookups = memoryHits + diskHits + misses;
+        return lookups == 0 ? 0.0 : (double) (memoryHits + diskHits) / lookups;
+    }
+
+    public synchronized String toString() {
+        return "hits = " + (memoryHits + diskHits) + ", misses = " + misses + ", hit rate = " + hitRate();
+    }
+
+
+    private void putMemory(String key, byte[] value) {
+        long cost = cost(key, value);
+        if (cost > budget) return;
+        byte[] old = memory.put(key, value);
+        if (old != null) bytes -= cost(key, old);
+        bytes += cost;
+
+        // evict least recently used entries until back under budget
+        Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<String, byte[]> e = it.next();
+            bytes -= cost(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    private static long cost(String key, byte[] value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + value.length;
+    }
+
+
+    private byte[] readDisk(String key) {
+        if (disk == null) return null;
+        long h = hash(key);
+        int base = slot(h);
+        if (disk.getLong(base) != h) return null;
+        int len = disk.getInt(base + 8);
+        if (len <= 0 || len > slotSize - SLOT_HEADER) return null;
+        byte[] v = new byte[len];
+        for (int i = 0; i < len; i++) v[i] = disk.get(base + SLOT_HEADER + i);
+        return v;
+    }
+
+    private void writeDisk(String key, byte[] value) {
+        if (disk == null || value.length > slotSize - SLOT_HEADER || value.length == 0) return;
+        long h = hash(key);
+        int base = slot(h);
+        disk.putLong(base, 0L);                  // invalidate while the slot is rewritten
+        disk.putInt(base + 8, value.length);
+        for (int i = 0; i < value.length; i++) disk.put(base + SLOT_HEADER + i, value[i]);
+        disk.putLong(base, h);
+    }
+
+    private int slot(long h) {
+        return (int) Long.remainderUnsigned(h, slots) * slotSize;
+    }
+
+
+    // return a 64-bit hash of the ints; four independent lanes keep the
+    // multiplier pipeline busy
+    public static long hash(int[] a) {
+        long h1 = P1 + P2, h2 = P2, h3 = 0, h4 = -P1;
+        int i = 0;
+        for (; i + 8 <= a.length; i += 8) {
+            h1 = round(h1, ((long) a[i]     << 32) | (a[i + 1] & 0xffffffffL));
+            h2 = round(h2, ((long) a[i + 2] << 32) | (a[i + 3] & 0xffffffffL));
+            h3 = round(h3, ((long) a[i + 4] << 32) | (a[i + 5] & 0xffffffffL));
+            h4 = round(h4, ((long) a[i + 6] << 32) | (a[i + 7] & 0xffffffffL));
+        }
+        long h = Long.rotateLeft(h1, 1) + Long.rotateLeft(h2, 7)
+               + Long.rotateLeft(h3, 12) + Long.rotateLeft(h4, 18);
+        for (; i < a.length; i++) h = round(h, a[i]);
+        return avalanche(h ^ a.length);
+    }
+
+    // return a 64-bit hash of the bytes
+    public static long hash(byte[] a) {
+        ByteBuffer b = ByteBuffer.wrap(a);
+        long h1 = P1 + P2, h2 = P2, h3 = 0, h4 = -P1;
+        int i = 0;
+        for (; i + 32 <= a.length; i += 32) {
+            h1 = round(h1, b.getLong(i));
+            h2 = round(h2, b.getLong(i + 8));
+            h3 = round(h3, b.getLong(i + 16));
+            h4 = round(h4, b.getLong(i + 24));
+        }
+        long h = Long.rotateLeft(h1, 1) + Long.rotateLeft(h2, 7)
+               + Long.rotateLeft(h3, 12) + Long.rotateLeft(h4, 18);
+        for (; i < a.length; i++) h = round(h, a[i]);
+        return avalanche(h ^ a.length);
+    }
+
+    // return a 64-bit hash of the doubles
+    public static long hash(double[] a) {
+        long h = P4;
+        for (int i = 0; i < a.length; i++) h = round(h, Double.doubleToLongBits(a[i]));
+        return avalanche(h ^ a.length);
+    }
+
+    // return a 64-bit hash of the string
+    public static long hash(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        long h = P3;
+        for (int i = 0; i < b.length; i++) h = round(h, b[i]);
+        return avalanche(h ^ b.length);
+    }
+
+    private static long round(long acc, long k) {
+        acc += k * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+
+    // sample client for testing: match the same scene twice
+    public static void main(String[] args) {
+        BufferedImage scene = new rendImage(args[0]).getBufferedImage();
+        Template t = new Template(args[1], new rendImage(args[1]).getBufferedImage());
+        int w = scene.getWidth();
+        int h = scene.getHeight();
+        ResultCache cache = new ResultCache(1 << 20);
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            String key = key(scene, t, "");
+            Correlator.Peak p = cache.getPeak(key);
+            if (p == null) {
+                p = Correlator.match(Correlator.red(scene), w, h, t);
+                cache.putPeak(key, p);
+            }
+            double ms = (System.nanoTime() - start) / 1e6;
+            System.out.println((round == 0 ? "first match   " : "second match  ") + p + ", " + ms + " ms");
+        }
+        System.out.println(cache);
+    }
+
+}
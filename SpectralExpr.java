@@ -0,0 +1,394 @@
+/******************************************************************************
+ *  Compilation:  javac SpectralExpr.java
+ *  Execution:    java SpectralExpr image1.png image2.png
+ *
+ *  Lazy expressions over size-by-size complex matrices, evaluated with
+ *  the elementwise steps fused.
+ *
+ *  Building an expression does no work. Evaluation treats each 2D FFT as
+ *  a barrier that owns a buffer, and everything between barriers (conj,
+ *  times, scale, normalize, and reading the leaves) as one fused kernel.
+ *  A fused kernel runs over the matrix in blocks of BLOCK elements, each
+ *  step a tight loop over L1-resident scratch, and each finished block is
+ *  copied into the FFT's input buffer while still in cache. The terminal
+ *  operations read the last buffer once: real() extracts the real part,
+ *  and peak() finds the maximum, mean and deviation of the real part in
+ *  the same pass.
+ *
+ *  So the correlation
+ *
+ *      SpectralExpr.of(scene).fft().times(SpectralExpr.of(template).conj()).ifft().peak()
+ *
+ *  sweeps memory once for conj-and-multiply into the inverse FFT's input
+ *  and once for the peak, instead of a pass per step with an intermediate
+ *  matrix for each. A node used by more than one consumer is evaluated
+ *  once. Expressions are not thread-safe.
+ *
+ *  The three 2D FFTs dominate a 512-by-512 match, so on one core the
+ *  saving is mostly in arrays allocated (six instead of nine in the
+ *  sample client) and memory traffic rather than in time.
+ *
+ *  % java SpectralExpr image1.png image2.png
+ *  peak at (x, y) = (220, 159), value = 7.9200448E8, score = 7.0711759092380415
+ *  fused 39.3 ms per match, step by step 38.2 ms
+ *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public abstract class SpectralExpr {
+
+    // elements per fused block; two doubles each fit in L1 several times over
+    private static final int BLOCK = 256;
+
+    private final int size;
+
+    private SpectralExpr(int size) {
+        this.size = size;
+    }
+
+    // return the side of the matrix
+    public int size() { return size; }
+
+
+    // leaves
+
+    // the w-by-h real pixels, row-major, zero-padded to size-by-size
+    public static SpectralExpr of(double[] pixels, int w, int h, int size) {
+        if (w > size || h > size || pixels.length < w * h) {
+            throw new IllegalArgumentException(w + "-by-" + h + " does not fit in " + size);
+        }
+        return new Pixels(pixels, w, h, size);
+    }
+
+    // the square matrix of complex numbers, read in place
+    public static SpectralExpr of(Complex[][] a) {
+        return new Objects(a);
+    }
+
+    // the row-major size-by-size matrix re + i im, read in place
+    public static SpectralExpr of(double[] re, double[] im, int size) {
+        return new Arrays2(re, im, size);
+    }
+
+    // the template spectrum, read in place
+    public static SpectralExpr of(Correlator.Spectrum s) {
+        return new Arrays2(s.re(), s.im(), s.size());
+    }
+
+
+    // operations
+
+    // return the 2D FFT of this expression
+    public SpectralExpr fft()  { return new Transform(this, false); }
+
+    // return the 2D inverse FFT of this expression
+    public SpectralExpr ifft() { return new Transform(this, true); }
+
+    // return the complex conjugate of this expression
+    public SpectralExpr conj() { return new Unary(this, Unary.CONJ, 0.0); }
+
+    // return this expression scaled by alpha
+    public SpectralExpr scale(double alpha) { return new Unary(this, Unary.SCALE, alpha); }
+
+    // return this expression with every element scaled to unit magnitude
+    // (zeros stay zero), as for phase correlation
+    public SpectralExpr normalize() { return new Unary(this, Unary.NORMALIZE, 0.0); }
+
+    // return the elementwise product of this expression and that one
+    public SpectralExpr times(SpectralExpr that) {
+        if (that.size != size) throw new IllegalArgumentException("Dimensions don't agree");
+        return new Times(this, that);
+    }
+
+
+    // terminal operations
+
+    // evaluate and return the real part, row-major
+    public double[] real() {
+        double[] out = new double[size * size];
+        double[] re = new double[BLOCK];
+        double[] im = new double[BLOCK];
+        for (int off = 0; off < out.length; off += BLOCK) {
+            int len = Math.min(BLOCK, out.length - off);
+            block(off, len, re, im);
+            System.arraycopy(re, 0, out, off, len);
+        }
+        release();
+        return out;
+    }
+
+    // evaluate and return the maximum of the real part, with the mean and
+    // standard deviation of the real part, in one pass
+    public Correlator.Peak peak() {
+        int n = size * size;
+        double[] re = new double[BLOCK];
+        double[] im = new double[BLOCK];
+        double sum = 0.0, sum2 = 0.0, best = Double.NEGATIVE_INFINITY;
+        int at = 0;
+        for (int off = 0; off < n; off += BLOCK) {
+            int len = Math.min(BLOCK, n - off);
+            block(off, len, re, im);
+            for (int k = 0; k < len; k++) {
+                double v = re[k];
+                sum  += v;
+                sum2 += v * v;
+                if (v > best) { best = v; at = off + k; }
+            }
+        }
+        release();
+        double mean = sum / n;
+        double var = Math.max(0.0, sum2 / n - mean * mean);
+        return new Correlator.Peak(at % size, at / size, best, mean, Math.sqrt(var));
+    }
+
+
+    // write elements [off, off + len) of this expression into re and im,
+    // evaluating any transforms below it first
+    abstract void block(int off, int len, double[] re, double[] im);
+
+    // count a consumer of this node's value
+    void use() { }
+
+    // drop buffers held for the evaluation just finished
+    void release() { }
+
+
+    // real pixels, zero-padded
+    private static final class Pixels extends SpectralExpr {
+        private final double[] pixels;
+        private final int w, h;
+
+        Pixels(double[] pixels, int w, int h, int size) {
+            super(size);
+            this.pixels = pixels;
+            this.w = w;
+            this.h = h;
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            int size = size();
+            for (int k = 0; k < len; k++) {
+                int row = (off + k) / size;
+                int col = (off + k) - row * size;
+                re[k] = row < h && col < w ? pixels[row * w + col] : 0.0;
+            }
+            Arrays.fill(im, 0, len, 0.0);
+        }
+    }
+
+    // split re/im arrays
+    private static final class Arrays2 extends SpectralExpr {
+        private final double[] re, im;
+
+        Arrays2(double[] re, double[] im, int size) {
+            super(size);
+            if (re.length != size * size || im.length != size * size) {
+                throw new IllegalArgumentException("Dimensions don't agree");
+            }
+            this.re = re;
+            this.im = im;
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            System.arraycopy(this.re, off, re, 0, len);
+            System.arraycopy(this.im, off, im, 0, len);
+        }
+    }
+
+    // Complex[][] rows
+    private static final class Objects extends SpectralExpr {
+        private final Complex[][] a;
+
+        Objects(Complex[][] a) {
+            super(a.length);
+            for (Complex[] row : a) {
+                if (row.length != a.length) throw new IllegalArgumentException("matrix is not square");
+            }
+            this.a = a;
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            int size = size();
+            for (int k = 0; k < len; k++) {
+                Complex c = a[(off + k) / size][(off + k) % size];
+                re[k] = c.re();
+                im[k] = c.im();
+            }
+        }
+    }
+
+
+    // conj, scale or normalize of one operand
+    private static final class Unary extends SpectralExpr {
+        static final int CONJ = 0, SCALE = 1, NORMALIZE = 2;
+
+        private final SpectralExpr a;
+        private final int op;
+        private final double alpha;
+
+        Unary(SpectralExpr a, int op, double alpha) {
+            super(a.size());
+            this.a = a;
+            this.op = op;
+            this.alpha = alpha;
+            a.use();
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            a.block(off, len, re, im);
+            switch (op) {
+                case CONJ:
+                    for (int k = 0; k < len; k++) im[k] = -im[k];
+                    break;
+                case SCALE:
+                    for (int k = 0; k < len; k++) {
+                        re[k] *= alpha;
+                        im[k] *= alpha;
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < len; k++) {
+                        double m = Math.hypot(re[k], im[k]);
+                        double s = m > 0.0 ? 1.0 / m : 0.0;
+                        re[k] *= s;
+                        im[k] *= s;
+                    }
+            }
+        }
+
+        void release() { a.release(); }
+    }
+
+    // elementwise product of two operands
+    private static final class Times extends SpectralExpr {
+        private final SpectralExpr a, b;
+        private final double[] bre = new double[BLOCK];
+        private final double[] bim = new double[BLOCK];
+
+        Times(SpectralExpr a, SpectralExpr b) {
+            super(a.size());
+            this.a = a;
+            this.b = b;
+            a.use();
+            b.use();
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            a.block(off, len, re, im);
+            b.block(off, len, bre, bim);
+            for (int k = 0; k < len; k++) {
+                double r = re[k] * bre[k] - im[k] * bim[k];
+                double i = re[k] * bim[k] + im[k] * bre[k];
+                re[k] = r;
+                im[k] = i;
+            }
+        }
+
+        void release() {
+            a.release();
+            b.release();
+        }
+    }
+
+
+    // 2D FFT or inverse FFT: a barrier that owns its buffer
+    private static final class Transform extends SpectralExpr {
+        private final SpectralExpr a;
+        private final boolean inverse;
+        private int consumers;             // nodes that read this one
+        private int pending;               // of those, not yet released
+        private double[] re, im;           // value while being evaluated
+
+        Transform(SpectralExpr a, boolean inverse) {
+            super(a.size());
+            this.a = a;
+            this.inverse = inverse;
+            a.use();
+        }
+
+        void use() { consumers++; }
+
+        private void evaluate() {
+            int size = size();
+            int n = size * size;
+            re = new double[n];
+            im = new double[n];
+
+            // run the fused kernel below a block at a time into the FFT's input
+            double[] bre = new double[BLOCK];
+            double[] bim = new double[BLOCK];
+            for (int off = 0; off < n; off += BLOCK) {
+                int len = Math.min(BLOCK, n - off);
+                a.block(off, len, bre, bim);
+                System.arraycopy(bre, 0, re, off, len);
+                System.arraycopy(bim, 0, im, off, len);
+            }
+            a.release();
+            if (inverse) BatchFFT.ifft2(re, im, size, size);
+            else         BatchFFT.fft2(re, im, size, size);
+            pending = Math.max(1, consumers);
+        }
+
+        void block(int off, int len, double[] re, double[] im) {
+            if (this.re == null) evaluate();
+            System.arraycopy(this.re, off, re, 0, len);
+            System.arraycopy(this.im, off, im, 0, len);
+        }
+
+        void release() {
+            if (re != null && --pending <= 0) {
+                re = null;
+                im = null;
+            }
+        }
+    }
+
+
+    // sample client for testing: the correlation of the two images, fused
+    // and step by step
+    public static void main(String[] args) {
+        BufferedImage scene = new rendImage(args[0]).getBufferedImage();
+        BufferedImage pulse = new rendImage(args[1]).getBufferedImage();
+        int w = scene.getWidth(), h = scene.getHeight();
+        int size = Correlator.paddedSize(Math.max(w, pulse.getWidth()), Math.max(h, pulse.getHeight()));
+        double[] x = Correlator.red(scene);
+        double[] t = Correlator.red(pulse);
+
+        Correlator.Peak p = null;
+        int reps = 20;
+        long fused = 0, steps = 0;
+        for (int k = 0; k < reps + 5; k++) {
+            long start = System.nanoTime();
+            p = SpectralExpr.of(x, w, h, size).fft()
+                .times(SpectralExpr.of(t, pulse.getWidth(), pulse.getHeight(), size).fft().conj())
+                .ifft().peak();
+            long mid = System.nanoTime();
+
+            // one pass per step, each into a new matrix
+            double[] xr = new double[size * size], xi = new double[size * size];
+            double[] tr = new double[size * size], ti = new double[size * size];
+            Correlator.pad(x, w, h, size, xr);
+            Correlator.pad(t, pulse.getWidth(), pulse.getHeight(), size, tr);
+            BatchFFT.fft2(xr, xi, size, size);
+            BatchFFT.fft2(tr, ti, size, size);
+            double[] cr = tr.clone(), ci = ti.clone();
+            ComplexVector.conjugate(cr, ci, 0, cr.length);
+            double[] pr = xr.clone(), pi = xi.clone();
+            ComplexVector.multiply(pr, pi, cr, ci, 0, pr.length);
+            BatchFFT.ifft2(pr, pi, size, size);
+            double[] real = pr.clone();
+            Correlator.peak(real, size);
+            long end = System.nanoTime();
+            if (k >= 5) {
+                fused += mid - start;
+                steps += end - mid;
+            }
+        }
+        System.out.println(p);
+        System.out.printf("fused %.1f ms per match, step by step %.1f ms\n",
+                          fused / 1e6 / reps, steps / 1e6 / reps);
+    }
+
+}
@@ -0,0 +1,183 @@
+/******************************************************************************
+ *  Compilation:  javac StreamingConvolver.java
+ *  Execution:    java StreamingConvolver
+ *
+ *  Block convolution (or correlation) of an unbounded 1D stream against
+ *  a fixed filter, by the overlap-save method.
+ *
+ *  Samples arrive in chunks of any size from a DoubleBuffer or a
+ *  ReadableByteChannel (big-endian doubles). Every blockSize input
+ *  samples, one fixed-size FFT, one pointwise product and one inverse
+ *  FFT produce blockSize output samples, so the work per chunk is
+ *  bounded and the output lags the input by at most one block. All
+ *  buffers are allocated up front; no objects are created per sample.
+ *
+ *  % java StreamingConvolver
+ *  max |streamed - direct| = 6.661338147750939E-16
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+public class StreamingConvolver {
+    private final int n;              // FFT size
+    private final int blockSize;      // new input samples per FFT
+    private final int history;        // samples carried over between blocks
+    private final int taps;           // filter length
+    private final double[] hre;       // filter spectrum
+    private final double[] him;
+    private final double[] window;    // last n input samples
+    private final double[] re;        // FFT work arrays
+    private final double[] im;
+    private final ByteBuffer bytes;   // staging buffer for channel input
+    private int fill;                 // new samples in window
+
+    // create a convolver of the stream with the filter h[], consuming
+    // blockSize samples per FFT
+    public StreamingConvolver(double[] h, int blockSize) {
+        if (h.length == 0) {
+            throw new IllegalArgumentException("filter is empty");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+        this.taps = h.length;
+        this.n = Integer.highestOneBit(Math.max(1, blockSize + h.length - 2)) * 2;
+        this.history = n - blockSize;
+
+        hre = new double[n];
+        him = new double[n];
+        System.arraycopy(h, 0, hre, 0, h.length);
+        fastCorr.fft(hre, him);
+
+        window = new double[n];
+        re = new double[n];
+        im = new double[n];
+        bytes = ByteBuffer.allocateDirect(8 * blockSize + 8);
+    }
+
+    // create a correlator of the stream against the template t[]; output
+    // sample k is the correlation at lag k - (t.length - 1)
+    public static StreamingConvolver correlator(double[] t, int blockSize) {
+        double[] h = new double[t.length];
+        for (int i = 0; i < t.length; i++) h[i] = t[t.length - 1 - i];
+        return new StreamingConvolver(h, blockSize);
+    }
+
+    // return the number of input samples consumed per FFT
+    public int blockSize() { return blockSize; }
+
+    // return the FFT size
+    public int fftSize() { return n; }
+
+
+    // consume samples from in and append completed output to out; input is
+    // only consumed while out has room for a whole block, so each call does
+    // at most (in.remaining() / blockSize + 1) transforms. Returns the number
+    // of output samples written
+    public int process(DoubleBuffer in, DoubleBuffer out) {
+        int written = 0;
+        while (in.hasRemaining() && out.remaining() >= blockSize) {
+            int k = Math.min(in.remaining(), blockSize - fill);
+            in.get(window, history + fill, k);
+            fill += k;
+            if (fill == blockSize) {
+                transform(out);
+                written += blockSize;
+            }
+        }
+        return written;
+    }
+
+
+    // read whatever is available from the channel (at most one block) and
+    // append completed output to out; returns the number of output samples
+    // written, or -1 at end of stream
+    public int process(ReadableByteChannel in, DoubleBuffer out) throws IOException {
+        if (out.remaining() < blockSize) return 0;
+        bytes.limit(8 * (blockSize - fill) + bytes.position());
+        int r = in.read(bytes);
+        bytes.flip();
+        DoubleBuffer samples = bytes.asDoubleBuffer();
+        int k = samples.remaining();
+        samples.get(window, history + fill, k);
+        fill += k;
+        bytes.position(8 * k);
+        bytes.compact();               // keep a partial trailing double
+        if (fill == blockSize) {
+            transform(out);
+            return blockSize;
+        }
+        return r < 0 ? -1 : 0;
+    }
+
+
+    // zero-pad the pending input to a full block and emit it, followed by
+    // the filter tail; out must have room for ((taps - 1) / blockSize + 2)
+    // blocks. Returns the number of output samples written
+    public int flush(DoubleBuffer out) {
+        int written = 0;
+        int tail = taps - 1;
+        while (fill > 0 || tail > 0) {
+            Arrays.fill(window, history + fill, n, 0.0);
+            tail -= blockSize - fill;
+            transform(out);
+            written += blockSize;
+        }
+        return written;
+    }
+
+
+    // run one overlap-save step over window[] and write blockSize outputs
+    private void transform(DoubleBuffer out) {
+        System.arraycopy(window, 0, re, 0, n);
+        Arrays.fill(im, 0.0);
+        fastCorr.fft(re, im);
+        ComplexVector.multiply(re, im, hre, him, 0, n);
+        fastCorr.ifft(re, im);
+
+        // the first n - blockSize outputs are wrapped around; the rest are valid
+        out.put(re, history, blockSize);
+
+        // slide the window forward by one block
+        System.arraycopy(window, blockSize, window, 0, history);
+        fill = 0;
+    }
+
+
+    // sample client for testing: stream a random signal in odd-sized chunks
+    // and compare against direct convolution
+    public static void main(String[] args) {
+        int m = 37;
+        int len = 5000;
+        double[] h = new double[m];
+        double[] x = new double[len];
+        for (int i = 0; i < m; i++)   h[i] = Math.random() - 0.5;
+        for (int i = 0; i < len; i++) x[i] = Math.random() - 0.5;
+
+        StreamingConvolver sc = new StreamingConvolver(h, 100);
+        DoubleBuffer in  = DoubleBuffer.wrap(x);
+        DoubleBuffer out = DoubleBuffer.allocate(len + 3 * sc.blockSize());
+        for (int pos = 0; pos < len; pos += 13) {
+            in.limit(Math.min(pos + 13, len));
+            sc.process(in, out);
+        }
+        sc.flush(out);
+
+        double err = 0.0;
+        for (int t = 0; t < len + m - 1; t++) {
+            double y = 0.0;
+            for (int k = 0; k < m; k++) {
+                if (t - k >= 0 && t - k < len) y += h[k] * x[t - k];
+            }
+            err = Math.max(err, Math.abs(y - out.get(t)));
+        }
+        System.out.println("max |streamed - direct| = " + err);
+    }
+
+}
@@ -0,0 +1,133 @@
+/******************************************************************************
+ *  Compilation:  javac Template.java
+ *  Execution:    java Template image2.png
+ *
+ *  A correlation template: its greyscale pixels and the conjugate of its
+ *  2D spectrum at each padded size it has been matched at.
+ *
+ *  Spectra are computed on first use at a given size and then kept, so
+ *  a long-lived process pays for each template FFT once. Thread-safe.
+ *
+ *  % java Template image2.png
+ *  image2.png: 512-by-512, spectrum sizes [512]
+ *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Template {
+    private final String id;          // name of template
+    private final int width;
+    private final int height;
+    private final double[] pixels;    // greyscale, row-major
+    private final Map<Integer, Correlator.Spectrum> spectra =
+        new ConcurrentHashMap<Integer, Correlator.Spectrum>();
+    private final Map<Integer, FixedFFT.Spectrum> fixedSpectra =
+        new ConcurrentHashMap<Integer, FixedFFT.Spectrum>();
+    private volatile long fingerprint;   // content hash, 0 until computed
+    private volatile boolean fixedPoint; // match with FixedFFT rather than doubles
+
+    // create a template from greyscale pixels, row-major
+    public Template(String id, double[] pixels, int width, int height) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+        this.id = id;
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    // create a template from the red channel of an image
+    public Template(String id, BufferedImage image) {
+        this(id, Correlator.red(image), image.getWidth(), image.getHeight());
+    }
+
+    public String id()       { return id; }
+    public int width()       { return width; }
+    public int height()      { return height; }
+    public double[] pixels() { return pixels; }
+
+    // return a 64-bit hash of the template's size and pixels
+    public long fingerprint() {
+        long f = fingerprint;
+        if (f == 0) {
+            f = ResultCache.hash(pixels) ^ (31L * width + height);
+            fingerprint = f;
+        }
+        return f;
+    }
+
+    // return the conjugate spectrum of this template zero-padded to size-by-size
+    public Correlator.Spectrum spectrum(int size) {
+        Correlator.Spectrum s = spectra.get(size);
+        if (s == null) {
+            s = Correlator.conjugateSpectrum(pixels, width, height, size);
+            spectra.put(size, s);
+        }
+        return s;
+    }
+
+    // return the fixed-point conjugate spectrum of this template zero-padded
+    // to size-by-size
+    public FixedFFT.Spectrum fixedSpectrum(int size) {
+        FixedFFT.Spectrum s = fixedSpectra.get(size);
+        if (s == null) {
+            s = FixedFFT.conjugateSpectrum(pixels, width, height, size);
+            fixedSpectra.put(size, s);
+        }
+        return s;
+    }
+
+    // is this template matched on the fixed-point path?
+    public boolean isFixedPoint() {
+        return fixedPoint;
+    }
+
+    // match this template on the fixed-point path, or on doubles
+    public void setFixedPoint(boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    // add a spectrum computed elsewhere, such as one loaded from disk
+    public void putSpectrum(Correlator.Spectrum s) {
+        spectra.put(s.size(), s);
+    }
+
+    // return the sizes at which spectra are held, in ascending order
+    public int[] spectrumSizes() {
+        TreeSet<Integer> sizes = new TreeSet<Integer>(spectra.keySet());
+        int[] a = new int[sizes.size()];
+        int i = 0;
+        for (int size : sizes) a[i++] = size;
+        return a;
+    }
+
+    // return the sizes at which fixed-point spectra are held, in ascending order
+    public int[] fixedSpectrumSizes() {
+        TreeSet<Integer> sizes = new TreeSet<Integer>(fixedSpectra.keySet());
+        int[] a = new int[sizes.size()];
+        int i = 0;
+        for (int size : sizes) a[i++] = size;
+        return a;
+    }
+
+    public String toString() {
+        return id + ": " + width + "-by-" + height + ", spectrum sizes "
+             + Arrays.toString(spectrumSizes());
+    }
+
+
+    // sample client for testing
+    public static void main(String[] args) {
+        rendImage picture = new rendImage(args[0]);
+        Template t = new Template(args[0], picture.getBufferedImage());
+        t.spectrum(Correlator.paddedSize(t.width(), t.height()));
+        System.out.println(t);
+    }
+
+}
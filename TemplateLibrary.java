@@ -0,0 +1,313 @@
+/******************************************************************************
+ *  Compilation:  javac TemplateLibrary.java
+ *  Execution:    java TemplateLibrary library.tpl 512,1024 image2.png ...
+ *                java TemplateLibrary library.tpl
+ *
+ *  On-disk library of templates with precomputed conjugate spectra.
+ *
+ *  The first form writes a library holding each image's greyscale pixels
+ *  and its conjugate spectrum at every listed padded size it fits in.
+ *  The second form opens a library, verifies every checksum and lists
+ *  its contents.
+ *
+ *  File layout (big-endian):
+ *
+ *    magic "TPLB", version, template count, directory length,
+ *    CRC32 of the directory, then the directory; each directory entry is
+ *
+ *      id (UTF-8, length-prefixed), width, height, offset of pixels,
+ *      CRC32 of the entry's data, number of spectra, and
+ *      (size, offset) per spectrum
+ *
+ *    then the data: 8-bit pixels, and for each spectrum size*size re
+ *    doubles followed by size*size im doubles, each region 8-aligned.
+ *
+ *  open() maps the file and reads only the directory, so it takes
+ *  milliseconds however many templates there are. A template's pixels
+ *  and spectra are copied out of the mapping, and its checksum checked,
+ *  the first time get() asks for it; no FFTs are computed.
+ *
+ *  % java TemplateLibrary library.tpl 512 image2.png
+ *  wrote 1 templates to library.tpl
+ *  % java TemplateLibrary library.tpl
+ *  opened library.tpl in 14.1 ms
+ *  image2.png: 512-by-512, spectrum sizes [512]
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class TemplateLibrary {
+    private static final int MAGIC   = 0x54504C42;   // "TPLB"
+    private static final int VERSION = 1;
+    private static final int HEADER  = 24;
+
+    // where one template's data lives in the file
+    private static final class Entry {
+        String id;
+        int width;
+        int height;
+        long pixels;        // offset of the 8-bit pixels
+        long crc;           // CRC32 of pixels and all spectra
+        int[] sizes;
+        long[] offsets;     // offset of each spectrum
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, Entry> directory = new LinkedHashMap<String, Entry>();
+    private final Map<String, Template> loaded = new LinkedHashMap<String, Template>();
+
+    private TemplateLibrary(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+
+    // open the library file, reading and checking only its directory
+    public static TemplateLibrary open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel ch = raf.getChannel();
+        TemplateLibrary lib = new TemplateLibrary(file, ch);
+        try {
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a template library: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported template library version " + header.getInt(4) + ": " + file);
+            }
+            int count = header.getInt(8);
+            int dirLen = header.getInt(12);
+            long dirCrc = header.getLong(16);
+
+            MappedByteBuffer dir = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, dirLen);
+            if (crc(dir) != dirCrc) {
+                throw new IOException("Template library directory is corrupt: " + file);
+            }
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry();
+                byte[] id = new byte[dir.getShort() & 0xffff];
+                dir.get(id);
+                e.id = new String(id, StandardCharsets.UTF_8);
+                e.width = dir.getInt();
+                e.height = dir.getInt();
+                e.pixels = dir.getLong();
+                e.crc = dir.getLong();
+                int n = dir.getInt();
+                e.sizes = new int[n];
+                e.offsets = new long[n];
+                for (int k = 0; k < n; k++) {
+                    e.sizes[k] = dir.getInt();
+                    e.offsets[k] = dir.getLong();
+                }
+                lib.directory.put(e.id, e);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // a truncated or corrupt directory underflows or maps a bad
+            // range; close the file whatever the failure
+            raf.close();
+            throw e;
+        }
+        return lib;
+    }
+
+
+    // return the template ids in file order
+    public List<String> ids() {
+        return new ArrayList<String>(directory.keySet());
+    }
+
+    // return the number of templates
+    public int size() {
+        return directory.size();
+    }
+
+    // return the template with the given id, with its stored spectra, or
+    // null if there is none; throws if its checksum does not match
+    public synchronized Template get(String id) throws IOException {
+        Template t = loaded.get(id);
+        if (t != null) return t;
+        Entry e = directory.get(id);
+        if (e == null) return null;
+
+        CRC32 crc = new CRC32();
+        MappedByteBuffer px = channel.map(FileChannel.MapMode.READ_ONLY, e.pixels, (long) e.width * e.height);
+        crc.update(px.duplicate());
+        double[] pixels = new double[e.width * e.height];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = px.get(i) & 0xff;
+        t = new Template(e.id, pixels, e.width, e.height);
+
+        for (int k = 0; k < e.sizes.length; k++) {
+            int size = e.sizes[k];
+            int len = size * size;
+            MappedByteBuffer sp = channel.map(FileChannel.MapMode.READ_ONLY, e.offsets[k], 16L * len);
+            crc.update(sp.duplicate());
+            double[] re = new double[len];
+            double[] im = new double[len];
+            sp.asDoubleBuffer().get(re).get(im);
+            t.putSpectrum(new Correlator.Spectrum(size, re, im));
+        }
+        if (crc.getValue() != e.crc) {
+            throw new IOException("Template " + id + " is corrupt in " + file);
+        }
+        loaded.put(id, t);
+        return t;
+    }
+
+    // return every template, loading those not yet loaded
+    public List<Template> templates() throws IOException {
+        List<Template> list = new ArrayList<Template>();
+        for (String id : directory.keySet()) list.add(get(id));
+        return list;
+    }
+
+    // release the file; templates already returned stay usable
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    // write the templates to file with conjugate spectra at each of the
+    // sizes that fits them; spectra already held by a template are reused
+    public static void write(File file, Collection<Template> templates, int[] sizes) throws IOException {
+        // lay out the data region after the header and directory
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Template t : templates) {
+            Entry e = new Entry();
+            e.id = t.id();
+            e.width = t.width();
+            e.height = t.height();
+            List<Integer> fit = new ArrayList<Integer>();
+            for (int size : sizes) {
+                if (size >= t.width() && size >= t.height() && Integer.bitCount(size) == 1) fit.add(size);
+            }
+            e.sizes = new int[fit.size()];
+            e.offsets = new long[fit.size()];
+            for (int k = 0; k < e.sizes.length; k++) e.sizes[k] = fit.get(k);
+            entries.add(e);
+        }
+        int dirLen = directoryBytes(entries).length;
+        long pos = align(HEADER + dirLen);
+        for (Entry e : entries) {
+            e.pixels = pos;
+            pos = align(pos + (long) e.width * e.height);
+            for (int k = 0; k < e.sizes.length; k++) {
+                e.offsets[k] = pos;
+                pos += 16L * e.sizes[k] * e.sizes[k];
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            int i = 0;
+            for (Template t : templates) {
+                Entry e = entries.get(i++);
+                CRC32 crc = new CRC32();
+
+                ByteBuffer px = ByteBuffer.allocate(e.width * e.height);
+                double[] pixels = t.pixels();
+                for (int p = 0; p < pixels.length; p++) {
+                    px.put(p, (byte) Math.max(0, Math.min(255, Math.round(pixels[p]))));
+                }
+                crc.update(px.duplicate());
+                ch.write(px, e.pixels);
+
+                for (int k = 0; k < e.sizes.length; k++) {
+                    Correlator.Spectrum s = t.spectrum(e.sizes[k]);
+                    int len = s.size() * s.size();
+                    ByteBuffer sp = ByteBuffer.allocate(16 * len);
+                    sp.asDoubleBuffer().put(s.re()).put(s.im());
+                    crc.update(sp.duplicate());
+                    ch.write(sp, e.offsets[k]);
+                }
+                e.crc = crc.getValue();
+            }
+
+            byte[] dir = directoryBytes(entries);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(dir.length);
+            header.putLong(crc(ByteBuffer.wrap(dir)));
+            header.flip();
+            ch.write(header, 0);
+            ch.write(ByteBuffer.wrap(dir), HEADER);
+            ch.force(true);
+        }
+        finally { raf.close(); }
+    }
+
+
+    private static byte[] directoryBytes(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Entry e : entries) {
+            byte[] id = e.id.getBytes(StandardCharsets.UTF_8);
+            if (id.length > 0xffff) throw new IOException("Template id too long: " + e.id);
+            out.writeShort(id.length);
+            out.write(id);
+            out.writeInt(e.width);
+            out.writeInt(e.height);
+            out.writeLong(e.pixels);
+            out.writeLong(e.crc);
+            out.writeInt(e.sizes.length);
+            for (int k = 0; k < e.sizes.length; k++) {
+                out.writeInt(e.sizes[k]);
+                out.writeLong(e.offsets[k]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static long crc(ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        crc.update(b.duplicate());
+        return crc.getValue();
+    }
+
+
+    // write a library from image files, or verify and list one
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        if (args.length > 2) {
+            String[] list = args[1].split(",");
+            int[] sizes = new int[list.length];
+            for (int i = 0; i < list.length; i++) sizes[i] = Integer.parseInt(list[i].trim());
+            List<Template> templates = new ArrayList<Template>();
+            for (int i = 2; i < args.length; i++) {
+                templates.add(new Template(args[i], new rendImage(args[i]).getBufferedImage()));
+            }
+            write(file, templates, sizes);
+            System.out.println("wrote " + templates.size() + " templates to " + file);
+            return;
+        }
+
+        long start = System.nanoTime();
+        TemplateLibrary lib = open(file);
+        System.out.printf("opened %s in %.1f ms\n", file, (System.nanoTime() - start) / 1e6);
+        for (Template t : lib.templates()) System.out.println(t);
+        lib.close();
+    }
+
+}
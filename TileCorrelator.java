@@ -0,0 +1,532 @@
+/******************************************************************************
+ *  Compilation:  javac TileCorrelator.java
+ *  Execution:    java TileCorrelator scene.png template.png [workers] [tile size]
+ *                java TileCorrelator -worker port
+ *
+ *  Correlates a template against a scene too large for one JVM by
+ *  splitting the scene into overlapping tiles and farming them out to
+ *  worker processes on the same machine.
+ *
+ *  The coordinator never decodes the scene. It reads only the image's
+ *  dimensions, lays out tile-by-tile regions that overlap by the template
+ *  size less one, so that every placement of the template lies wholly in
+ *  some tile, and launches the workers as child JVMs that connect back
+ *  over a loopback socket. Each worker decodes just the regions it is
+ *  given (ImageReadParam.setSourceRegion), correlates them against the
+ *  template, whose spectrum it computes once per tile size, and returns
+ *  the peak over the tile's valid lags.
+ *
+ *  Tiles sit in one shared queue and each worker is handed the next one
+ *  as soon as it returns a result, so fast workers take more tiles than
+ *  slow ones. A worker that dies, whose connection fails, or that takes
+ *  longer than the tile timeout over one tile is killed and replaced by
+ *  a new worker process, and its unfinished tile is put back at the head
+ *  of the queue. A worker that never connects back within CONNECT_TIMEOUT
+ *  is replaced the same way. A tile that has failed MAX_ATTEMPTS times,
+ *  running out of workers and replacements, or no worker starting at all
+ *  fails the match. The result is the tile peak with the largest value.
+ *
+ *  Protocol (DataInput/DataOutput over the socket):
+ *
+ *    worker -> coordinator  process id
+ *    coordinator -> worker  scene path, template id, width, height, 8-bit pixels
+ *    coordinator -> worker  tile id, x, y, width, height      (id -1 to stop)
+ *    worker -> coordinator  tile id, x, y, value, mean, stddev
+ *
+ *  % java TileCorrelator mosaic.png template.png 4 2048
+ *  peak at (x, y) = (5220, 3159), value = 8.9196352E7, score = 42.53310041376067
+ *  tiles = 9, retries = 0, 4 workers, 18.39 s
+ *
+ ******************************************************************************/
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+public class TileCorrelator {
+
+    // attempts per tile before the match is abandoned
+    private static final int MAX_ATTEMPTS = 3;
+
+    // how long to wait for the workers to connect, in milliseconds
+    private static final int CONNECT_TIMEOUT = 60000;
+
+    // default longest wait for one tile's result, in milliseconds
+    private static final int TILE_TIMEOUT = 300000;
+
+    // a connected worker process
+    private static final class Worker {
+        final Socket socket;
+        final Process process;          // null if its process id is unknown
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Worker(Socket socket, Process process, DataInputStream in, DataOutputStream out) {
+            this.socket = socket;
+            this.process = process;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    // one region of the scene
+    private static final class Tile {
+        final int id, x, y, width, height;
+        int attempts;
+
+        Tile(int id, int x, int y, int width, int height) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final int workers;
+    private final int tileSize;
+    private final List<String> jvmArgs = new ArrayList<String>();
+    private int tileTimeout = TILE_TIMEOUT;
+
+    // state of the match in progress, guarded by this
+    private final Deque<Tile> queue = new ArrayDeque<Tile>();
+    private int tiles;                  // tiles in the last match
+    private int remaining;              // tiles without a result
+    private int live;                   // workers still connected
+    private int retries;
+    private int respawns;               // replacement workers left to launch
+    private final List<Process> processes = new ArrayList<Process>();
+    private final List<Process> connected = new ArrayList<Process>();
+    private Correlator.Peak best;
+    private IOException failure;
+    private boolean finished;           // true once match() is returning
+
+
+    // correlate with the given number of worker processes and tiles of
+    // tileSize-by-tileSize pixels (a power of 2)
+    public TileCorrelator(int workers, int tileSize) {
+        if (workers < 1) throw new IllegalArgumentException("need at least one worker");
+        if (Integer.bitCount(tileSize) != 1) throw new IllegalArgumentException("tile size must be a power of 2");
+        this.workers = workers;
+        this.tileSize = tileSize;
+    }
+
+    // pass extra JVM options, such as -Xmx, to each worker process
+    public void addWorkerOption(String option) {
+        jvmArgs.add(option);
+    }
+
+    // give up on a worker that takes longer than millis over one tile
+    public void setTileTimeout(int millis) {
+        if (millis <= 0) throw new IllegalArgumentException("timeout must be positive");
+        tileTimeout = millis;
+    }
+
+    // return the number of tiles in the last match
+    public synchronized int tiles()   { return tiles; }
+
+    // return the number of tile attempts repeated in the last match
+    public synchronized int retries() { return retries; }
+
+
+    // return the peak of the template in the scene image file
+    public Correlator.Peak match(File scene, Template template) throws IOException {
+        int tw = template.width();
+        int th = template.height();
+        if (tw > tileSize || th > tileSize) {
+            throw new IllegalArgumentException("template does not fit in a " + tileSize + " tile");
+        }
+        int[] dims = dimensions(scene);
+        if (dims[0] < tw || dims[1] < th) {
+            throw new IllegalArgumentException(dims[0] + "-by-" + dims[1] + " scene is smaller than the "
+                                               + tw + "-by-" + th + " template");
+        }
+        List<Tile> layout = layout(dims[0], dims[1], tw, th);
+
+        synchronized (this) {
+            queue.clear();
+            queue.addAll(layout);
+            tiles = layout.size();
+            remaining = layout.size();
+            live = 0;
+            retries = 0;
+            respawns = MAX_ATTEMPTS * Math.min(workers, layout.size());
+            processes.clear();
+            connected.clear();
+            best = null;
+            failure = null;
+            finished = false;
+        }
+
+        final ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress());
+        List<Thread> handlers = new ArrayList<Thread>();
+        try {
+            server.setSoTimeout(CONNECT_TIMEOUT);
+            int n = Math.min(workers, layout.size());
+            for (int i = 0; i < n; i++) launch(server.getLocalPort());
+            for (int i = 0; i < n; i++) {
+                final Worker w = start(server);
+                if (w == null) break;             // go on with those connected
+                synchronized (this) { live++; }
+                final String path = scene.getAbsolutePath();
+                final Template t = template;
+                Thread handler = new Thread(new Runnable() {
+                    public void run() { serve(server, w, path, t); }
+                }, "tile-worker-" + i);
+                handler.setDaemon(true);
+                handler.start();
+                handlers.add(handler);
+            }
+
+            synchronized (this) {
+                while (remaining > 0 && failure == null) {
+                    try { wait(); }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                }
+                if (failure != null) throw failure;
+                return best;
+            }
+        }
+        finally {
+            synchronized (this) {
+                finished = true;                  // let idle handlers stop their workers
+                queue.clear();
+                notifyAll();
+            }
+            for (Thread h : handlers) {
+                try { h.join(1000); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            synchronized (this) {
+                for (Process p : processes) p.destroy();
+            }
+            server.close();
+        }
+    }
+
+
+    // return the regions covering every placement of a tw-by-th template
+    // in a w-by-h scene, in row-major order
+    private List<Tile> layout(int w, int h, int tw, int th) {
+        int stepX = tileSize - tw + 1;
+        int stepY = tileSize - th + 1;
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int y = 0; y <= h - th; y += stepY) {
+            for (int x = 0; x <= w - tw; x += stepX) {
+                tiles.add(new Tile(tiles.size(), x, y, Math.min(tileSize, w - x), Math.min(tileSize, h - y)));
+            }
+        }
+        return tiles;
+    }
+
+
+    // start a worker JVM on the same class path that connects to port
+    private void launch(int port) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(jvmArgs);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(TileCorrelator.class.getName());
+        cmd.add("-worker");
+        cmd.add(Integer.toString(port));
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process p = pb.start();
+        synchronized (this) { processes.add(p); }
+    }
+
+    // connect one of the launched workers; a worker that never connects is
+    // presumed dead and replaced as a failed one would be, and null is
+    // returned once replacements run out while other workers are running
+    private Worker start(ServerSocket server) throws IOException {
+        while (true) {
+            try {
+                return connect(server);
+            }
+            catch (IOException e) {
+                abandon();
+                boolean retry = replaceable();
+                synchronized (this) {
+                    if (!retry && live == 0) throw new IOException("no worker could be started", e);
+                }
+                if (!retry) return null;
+                launch(server.getLocalPort());
+            }
+        }
+    }
+
+    // kill the launched workers that have not connected
+    private synchronized void abandon() {
+        for (Process p : processes) {
+            if (!connected.contains(p)) p.destroyForcibly();
+        }
+    }
+
+    // accept the next worker to connect and find its process by the id it
+    // sends first; workers are interchangeable, so any launched one will do
+    private Worker connect(ServerSocket server) throws IOException {
+        Socket socket = server.accept();
+        try {
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            long pid = in.readLong();
+            Process process = null;
+            synchronized (this) {
+                for (Process p : processes) if (p.pid() == pid) process = p;
+                if (process != null) connected.add(process);
+            }
+            socket.setSoTimeout(tileTimeout);
+            return new Worker(socket, process, in, out);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+
+    // feed tiles to one worker until the queue is empty; a worker that
+    // fails or times out is killed and, while tiles remain, replaced
+    private void serve(ServerSocket server, Worker w, String scene, Template t) {
+        while (w != null) {
+            IOException cause = null;
+            try {
+                feed(w, scene, t);
+                return;
+            }
+            catch (IOException e) {
+                cause = e;
+            }
+            finally {
+                try { w.socket.close(); }
+                catch (IOException e) { }
+            }
+
+            if (w.process != null) w.process.destroyForcibly();
+            w = null;
+            if (replaceable()) {
+                try {
+                    launch(server.getLocalPort());
+                    w = connect(server);
+                }
+                catch (IOException e) {
+                    abandon();
+                    cause = e;
+                }
+            }
+            if (w == null) retire(cause);
+        }
+    }
+
+    // send the template and then tiles to the worker until none are left
+    private void feed(Worker w, String scene, Template t) throws IOException {
+        Tile tile = null;
+        try {
+            DataOutputStream out = w.out;
+            DataInputStream in = w.in;
+            out.writeUTF(scene);
+            out.writeUTF(t.id());
+            out.writeInt(t.width());
+            out.writeInt(t.height());
+            double[] pixels = t.pixels();
+            byte[] bytes = new byte[pixels.length];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Math.max(0, Math.min(255, Math.round(pixels[i])));
+            }
+            out.write(bytes);
+
+            while ((tile = next()) != null) {
+                out.writeInt(tile.id);
+                out.writeInt(tile.x);
+                out.writeInt(tile.y);
+                out.writeInt(tile.width);
+                out.writeInt(tile.height);
+                out.flush();
+                if (in.readInt() != tile.id) throw new IOException("worker answered for the wrong tile");
+                Correlator.Peak p = new Correlator.Peak(in.readInt(), in.readInt(),
+                                                        in.readDouble(), in.readDouble(), in.readDouble());
+                done(p);
+                tile = null;
+            }
+            out.writeInt(-1);
+            out.flush();
+        }
+        catch (IOException e) {
+            lost(tile, e);
+            throw e;
+        }
+    }
+
+    // return the next tile for a worker, or null when the match is over;
+    // an idle worker waits while others still hold tiles, in case one of
+    // them fails and its tile comes back
+    private synchronized Tile next() {
+        while (queue.isEmpty() && remaining > 0 && failure == null && !finished) {
+            try { wait(); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        Tile tile = queue.pollFirst();
+        if (tile != null) tile.attempts++;
+        return tile;
+    }
+
+    private synchronized void done(Correlator.Peak p) {
+        if (best == null || p.value() > best.value()) best = p;
+        remaining--;
+        notifyAll();
+    }
+
+    // put back the tile a failed worker held, if any
+    private synchronized void lost(Tile tile, IOException cause) {
+        if (tile != null) {
+            if (tile.attempts >= MAX_ATTEMPTS) {
+                failure = new IOException("tile at (" + tile.x + ", " + tile.y + ") failed "
+                                        + tile.attempts + " times", cause);
+            }
+            else {
+                retries++;
+                queue.addFirst(tile);
+            }
+        }
+        notifyAll();
+    }
+
+    // should a failed worker be replaced?
+    private synchronized boolean replaceable() {
+        if (finished || failure != null || remaining == 0 || respawns == 0) return false;
+        respawns--;
+        return true;
+    }
+
+    // retire a failed worker that is not being replaced
+    private synchronized void retire(IOException cause) {
+        live--;
+        if (live == 0 && remaining > 0 && failure == null) {
+            failure = new IOException("all workers failed", cause);
+        }
+        notifyAll();
+    }
+
+
+    // return the width and height of the image without decoding it
+    private static int[] dimensions(File file) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null) throw new IOException("Cannot open " + file);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) throw new IOException("Unrecognized image format: " + file);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            }
+            finally { reader.dispose(); }
+        }
+        finally { iis.close(); }
+    }
+
+
+    // worker: correlate the tiles the coordinator on port sends, until told to stop
+    private static void work(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeLong(ProcessHandle.current().pid());
+        out.flush();
+        File scene = new File(in.readUTF());
+        String id = in.readUTF();
+        int tw = in.readInt();
+        int th = in.readInt();
+        byte[] bytes = new byte[tw * th];
+        in.readFully(bytes);
+        double[] pixels = new double[bytes.length];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = bytes[i] & 0xff;
+        Template template = new Template(id, pixels, tw, th);
+
+        ImageInputStream iis = ImageIO.createImageInputStream(scene);
+        if (iis == null) throw new IOException("Cannot open " + scene);
+        ImageReader reader = ImageIO.getImageReaders(iis).next();
+        reader.setInput(iis, false, true);
+        try {
+            while (true) {
+                int tile = in.readInt();
+                if (tile < 0) break;
+                int x = in.readInt();
+                int y = in.readInt();
+                int w = in.readInt();
+                int h = in.readInt();
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(x, y, w, h));
+                double[] region = Correlator.red(reader.read(0, param));
+                int size = Correlator.paddedSize(w, h);
+                double[] s = Correlator.surface(region, w, h, template.spectrum(size));
+                Correlator.Peak p = Correlator.peak(s, size, w - tw + 1, h - th + 1);
+
+                out.writeInt(tile);
+                out.writeInt(x + p.x());
+                out.writeInt(y + p.y());
+                out.writeDouble(p.value());
+                out.writeDouble(p.mean());
+                out.writeDouble(p.stddev());
+                out.flush();
+            }
+        }
+        catch (EOFException e) {
+            // coordinator went away
+        }
+        finally {
+            reader.dispose();
+            iis.close();
+            socket.close();
+        }
+    }
+
+
+    // run as coordinator, or as a worker when started with -worker
+    public static void main(String[] args) throws IOException {
+        if (args[0].equals("-worker")) {
+            work(Integer.parseInt(args[1]));
+            return;
+        }
+        File scene = new File(args[0]);
+        Template template = new Template(args[1], new rendImage(args[1]).getBufferedImage());
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int tile = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+
+        TileCorrelator tc = new TileCorrelator(workers, tile);
+        long start = System.nanoTime();
+        Correlator.Peak p = tc.match(scene, template);
+        double s = (System.nanoTime() - start) / 1e9;
+        System.out.println(p);
+        System.out.printf("tiles = %d, retries = %d, %d workers, %.2f s\n",
+                          tc.tiles(), tc.retries(), workers, s);
+    }
+
+}
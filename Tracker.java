@@ -0,0 +1,207 @@
+/******************************************************************************
+ *  Compilation:  javac Tracker.java
+ *  Execution:    java Tracker
+ *
+ *  Frame-to-frame template tracking that correlates only a predicted
+ *  region of interest.
+ *
+ *  A constant-velocity Kalman filter on each axis predicts where the
+ *  template will be in the next frame. Only a small power-of-2 square
+ *  around that prediction, big enough for the template plus a search
+ *  margin, is cut out and correlated, so the per-frame cost is that of
+ *  an roi-by-roi FFT rather than a full-frame one. When the match in the
+ *  region is weak (its peak score falls below a threshold), or there is
+ *  no track yet, the whole frame is searched and the filter restarted.
+ *
+ *  % java Tracker
+ *  frames = 200, full-frame searches = 1, max position error = 0 pixels
+ *  mean time per frame: roi 2.23 ms, full frame 23.2 ms
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+public class Tracker {
+
+    // the outcome of tracking one frame
+    public static final class Result {
+        private final int x;              // template top-left in the frame
+        private final int y;
+        private final double score;       // peak score of the match used
+        private final boolean fullFrame;  // true if the whole frame was searched
+
+        Result(int x, int y, double score, boolean fullFrame) {
+            this.x = x;
+            this.y = y;
+            this.score = score;
+            this.fullFrame = fullFrame;
+        }
+
+        public int x()              { return x; }
+        public int y()              { return y; }
+        public double score()       { return score; }
+        public boolean fullFrame()  { return fullFrame; }
+
+        public String toString() {
+            return "(" + x + ", " + y + "), score = " + score + (fullFrame ? ", full frame" : ", roi");
+        }
+    }
+
+
+    private final Template template;
+    private final int roi;            // side of the search region, a power of 2
+    private final double minScore;    // weakest roi match that keeps the track
+    private final double q;           // process noise (acceleration variance)
+    private final double r;           // measurement noise variance
+    private final double[] crop;      // roi-by-roi work area
+
+    private boolean tracking;
+    private final Axis ax = new Axis();
+    private final Axis ay = new Axis();
+
+
+    // track the template, searching margin pixels around the predicted
+    // position, and fall back to a full-frame search when the peak score
+    // drops below minScore
+    public Tracker(Template template, int margin, double minScore) {
+        this.template = template;
+        this.roi = Correlator.paddedSize(template.width() + 2*margin, template.height() + 2*margin);
+        this.minScore = minScore;
+        this.q = 1.0;
+        this.r = 1.0;
+        this.crop = new double[roi * roi];
+    }
+
+    // return the side of the search region
+    public int roiSize() { return roi; }
+
+    // forget the current track; the next frame is searched in full
+    public void reset() { tracking = false; }
+
+
+    // locate the template in the w-by-h greyscale frame, row-major
+    public Result update(double[] frame, int w, int h) {
+        if (tracking) {
+            double px = ax.predict(q);
+            double py = ay.predict(q);
+
+            // center the region on the predicted template center, inside the frame
+            int rx = clamp((int) Math.round(px + template.width() / 2.0 - roi / 2.0), 0, Math.max(0, w - roi));
+            int ry = clamp((int) Math.round(py + template.height() / 2.0 - roi / 2.0), 0, Math.max(0, h - roi));
+            int cw = Math.min(roi, w - rx);
+            int ch = Math.min(roi, h - ry);
+            for (int j = 0; j < ch; j++) {
+                System.arraycopy(frame, (ry + j) * w + rx, crop, j * roi, cw);
+                Arrays.fill(crop, j * roi + cw, (j + 1) * roi, 0.0);
+            }
+            Arrays.fill(crop, ch * roi, roi * roi, 0.0);
+
+            double[] s = Correlator.surface(crop, roi, roi, template.spectrum(roi));
+            int lagsX = cw - template.width() + 1;
+            int lagsY = ch - template.height() + 1;
+            Correlator.Peak p = lagsX > 0 && lagsY > 0 ? Correlator.peak(s, roi, lagsX, lagsY) : null;
+            if (p != null && p.score() >= minScore) {
+                ax.correct(rx + p.x(), r);
+                ay.correct(ry + p.y(), r);
+                return new Result(rx + p.x(), ry + p.y(), p.score(), false);
+            }
+        }
+
+        // no track, or lost it: search the whole frame and restart the filter
+        Correlator.Peak p = Correlator.match(frame, w, h, template);
+        ax.start(p.x());
+        ay.start(p.y());
+        tracking = true;
+        return new Result(p.x(), p.y(), p.score(), true);
+    }
+
+
+    private static int clamp(int v, int lo, int hi) {
+        return Math.max(lo, Math.min(hi, v));
+    }
+
+
+    // constant-velocity Kalman filter for one coordinate, unit time step
+    private static final class Axis {
+        private double p, v;                   // position and velocity
+        private double pp, pv, vv;             // covariance entries
+
+        void start(double z) {
+            p = z;
+            v = 0.0;
+            pp = 1.0;
+            pv = 0.0;
+            vv = 100.0;                        // velocity unknown at first
+        }
+
+        // advance one step and return the predicted position
+        double predict(double q) {
+            p += v;
+            double npp = pp + 2*pv + vv + q/4;
+            double npv = pv + vv + q/2;
+            double nvv = vv + q;
+            pp = npp;
+            pv = npv;
+            vv = nvv;
+            return p;
+        }
+
+        // fold in a measured position z with variance r
+        void correct(double z, double r) {
+            double s = pp + r;
+            double kp = pp / s;
+            double kv = pv / s;
+            double y = z - p;
+            p += kp * y;
+            v += kv * y;
+            double npp = (1 - kp) * pp;
+            double npv = (1 - kp) * pv;
+            double nvv = vv - kv * pv;
+            pp = npp;
+            pv = npv;
+            vv = nvv;
+        }
+    }
+
+
+    // sample client for testing: a 32-by-32 pattern moving across a noisy
+    // 512-by-512 background
+    public static void main(String[] args) {
+        int w = 512, h = 512, tw = 32;
+        java.util.Random random = new java.util.Random(1);
+        double[] pattern = new double[tw * tw];
+        for (int i = 0; i < pattern.length; i++) pattern[i] = random.nextInt(256);
+        Template template = new Template("pattern", pattern, tw, tw);
+        Tracker tracker = new Tracker(template, 24, 5.0);
+
+        double[] frame = new double[w * h];
+        int frames = 200, full = 0, maxErr = 0;
+        long roiNanos = 0, fullNanos = 0;
+        for (int f = 0; f < frames; f++) {
+            int x = (int) Math.round(40 + 2.0 * f);
+            int y = (int) Math.round(250 + 120 * Math.sin(f / 30.0));
+            for (int i = 0; i < frame.length; i++) frame[i] = random.nextInt(64);
+            for (int j = 0; j < tw; j++)
+                for (int i = 0; i < tw; i++)
+                    frame[(y + j) * w + x + i] = pattern[j * tw + i];
+
+            long start = System.nanoTime();
+            Result res = tracker.update(frame, w, h);
+            long elapsed = System.nanoTime() - start;
+            if (res.fullFrame()) { full++; fullNanos += elapsed; }
+            else                 roiNanos += elapsed;
+            maxErr = Math.max(maxErr, Math.abs(res.x() - x) + Math.abs(res.y() - y));
+        }
+
+        // time a full-frame search for comparison
+        long start = System.nanoTime();
+        for (int k = 0; k < 5; k++) Correlator.match(frame, w, h, template);
+        fullNanos = (System.nanoTime() - start) / 5;
+
+        System.out.println("frames = " + frames + ", full-frame searches = " + full
+                         + ", max position error = " + maxErr + " pixels");
+        System.out.printf("mean time per frame: roi %.2f ms, full frame %.1f ms\n",
+                          roiNanos / 1e6 / (frames - full), fullNanos / 1e6);
+    }
+
+}
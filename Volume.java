@@ -0,0 +1,185 @@
+/******************************************************************************
+ *  Compilation:  javac Volume.java
+ *  Execution:    java Volume [dir]
+ *
+ *  A complex nx-by-ny-by-nz volume held outside the Java heap.
+ *
+ *  Each z-slice is one DoubleBuffer of 2 * nx * ny values: the real parts
+ *  of the slice, row-major, followed by the imaginary parts. A buffer is
+ *  either allocated directly or mapped from a file, one mapping per slice,
+ *  so neither the 2 GB limit on a single buffer nor the heap size bounds
+ *  the volume: a 512-by-512-by-512 volume is 512 buffers of 4 MB, 2 GB in
+ *  all. Slices and runs of rows are copied in and out of double[] scratch
+ *  with absolute bulk gets and puts, which are safe from many threads as
+ *  long as they touch different ranges.
+ *
+ *  % java Volume /tmp
+ *  direct 64-by-64-by-64: (3, 5, 7) = 42.0 + 0.0i
+ *  mapped 64-by-64-by-64: (3, 5, 7) = 42.0 + 0.0i, 4194304 bytes in /tmp/volume-64.bin
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public final class Volume {
+    private final int nx, ny, nz;
+    private final DoubleBuffer[] slices;     // re of the slice, then im
+
+    private Volume(int nx, int ny, int nz, DoubleBuffer[] slices) {
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.slices = slices;
+    }
+
+
+    // return a zeroed volume in direct buffers
+    public static Volume allocate(int nx, int ny, int nz) {
+        int bytes = sliceBytes(nx, ny, nz);
+        DoubleBuffer[] slices = new DoubleBuffer[nz];
+        for (int z = 0; z < nz; z++) {
+            slices[z] = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        return new Volume(nx, ny, nz, slices);
+    }
+
+    // return a volume mapped from the file, which is created or resized
+    // to hold it; an existing file of that size keeps its contents, in
+    // native byte order
+    public static Volume map(File file, int nx, int ny, int nz) throws IOException {
+        long bytes = sliceBytes(nx, ny, nz);
+        DoubleBuffer[] slices = new DoubleBuffer[nz];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(bytes * nz);
+            FileChannel channel = raf.getChannel();
+            for (int z = 0; z < nz; z++) {
+                slices[z] = channel.map(FileChannel.MapMode.READ_WRITE, z * bytes, bytes)
+                                   .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        }
+        finally {
+            // mappings stay valid after the channel is closed
+            raf.close();
+        }
+        return new Volume(nx, ny, nz, slices);
+    }
+
+    private static int sliceBytes(int nx, int ny, int nz) {
+        if (nx <= 0 || ny <= 0 || nz <= 0) throw new IllegalArgumentException("empty volume");
+        long bytes = 16L * nx * ny;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(nx + "-by-" + ny + " slice does not fit in one buffer");
+        }
+        return (int) bytes;
+    }
+
+
+    public int nx() { return nx; }
+    public int ny() { return ny; }
+    public int nz() { return nz; }
+
+    // return the number of bytes the volume holds
+    public long bytes() {
+        return 16L * nx * ny * nz;
+    }
+
+
+    // return the real or imaginary part at (x, y, z)
+    public double re(int x, int y, int z) { return slices[z].get(y*nx + x); }
+    public double im(int x, int y, int z) { return slices[z].get(nx*ny + y*nx + x); }
+
+    // set the value at (x, y, z)
+    public void set(int x, int y, int z, double re, double im) {
+        slices[z].put(y*nx + x, re);
+        slices[z].put(nx*ny + y*nx + x, im);
+    }
+
+
+    // copy slice z into re[] and im[], row-major nx-by-ny
+    public void readSlice(int z, double[] re, double[] im) {
+        int n = nx * ny;
+        slices[z].get(0, re, 0, n);
+        slices[z].get(n, im, 0, n);
+    }
+
+    // copy re[] and im[], row-major nx-by-ny, into slice z
+    public void writeSlice(int z, double[] re, double[] im) {
+        int n = nx * ny;
+        slices[z].put(0, re, 0, n);
+        slices[z].put(n, im, 0, n);
+    }
+
+    // copy len values of slice z starting at (x, y), running on into the
+    // following rows, into re[] and im[] at off
+    public void read(int z, int x, int y, int len, double[] re, double[] im, int off) {
+        int i = y*nx + x;
+        slices[z].get(i, re, off, len);
+        slices[z].get(nx*ny + i, im, off, len);
+    }
+
+    // copy len values from re[] and im[] at off into slice z starting at
+    // (x, y)
+    public void write(int z, int x, int y, int len, double[] re, double[] im, int off) {
+        int i = y*nx + x;
+        slices[z].put(i, re, off, len);
+        slices[z].put(nx*ny + i, im, off, len);
+    }
+
+
+    // set slice z to the w-by-h row-major pixels in its top-left corner,
+    // zero elsewhere and with no imaginary part
+    public void setReal(int z, double[] pixels, int w, int h) {
+        if (w > nx || h > ny || pixels.length < w * h) {
+            throw new IllegalArgumentException(w + "-by-" + h + " does not fit in " + nx + "-by-" + ny);
+        }
+        double[] row = new double[nx];
+        DoubleBuffer s = slices[z];
+        for (int y = 0; y < ny; y++) {
+            if (y < h) System.arraycopy(pixels, y*w, row, 0, w);
+            else       Arrays.fill(row, 0, w, 0.0);
+            s.put(y*nx, row, 0, nx);
+        }
+        Arrays.fill(row, 0.0);
+        for (int y = 0; y < ny; y++) s.put(nx*ny + y*nx, row, 0, nx);
+    }
+
+    // zero slice z
+    public void clear(int z) {
+        double[] row = new double[nx];
+        for (int y = 0; y < 2 * ny; y++) slices[z].put(y*nx, row, 0, nx);
+    }
+
+    // zero the volume
+    public void clear() {
+        for (int z = 0; z < nz; z++) clear(z);
+    }
+
+
+    // sample client for testing
+    public static void main(String[] args) throws IOException {
+        int n = 64;
+        Volume v = allocate(n, n, n);
+        v.set(3, 5, 7, 42.0, 0.0);
+        System.out.println("direct " + n + "-by-" + n + "-by-" + n + ": (3, 5, 7) = "
+                           + v.re(3, 5, 7) + " + " + v.im(3, 5, 7) + "i");
+
+        File file = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                             "volume-" + n + ".bin");
+        Volume m = map(file, n, n, n);
+        m.clear();
+        m.set(3, 5, 7, 42.0, 0.0);
+        System.out.println("mapped " + n + "-by-" + n + "-by-" + n + ": (3, 5, 7) = "
+                           + m.re(3, 5, 7) + " + " + m.im(3, 5, 7) + "i, "
+                           + file.length() + " bytes in " + file);
+        file.delete();
+    }
+
+}
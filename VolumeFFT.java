@@ -0,0 +1,416 @@
+/******************************************************************************
+ *  Compilation:  javac VolumeFFT.java
+ *  Execution:    java VolumeFFT [size] [dir]
+ *
+ *  3D FFTs and cross-correlation of Volumes, for matching a template in
+ *  a z-stack of frames including its offset between frames.
+ *
+ *  A transform is two passes over the volume, each split into tasks on
+ *  the common fork/join pool:
+ *
+ *    planes    each z-slice is copied to the heap, transformed along x
+ *              and y by BatchFFT.fft2, and copied back
+ *    columns   the volume is cut into blocks that span every slice and
+ *              cover a few hundred (x, y) positions; a block is gathered
+ *              into a z-by-positions matrix, one contiguous run per slice,
+ *              which is an interleaved batch of z-signals for BatchFFT,
+ *              and scattered back. Blocks are 256 KB per array where
+ *              the depth allows, so the batch transform stays in cache.
+ *
+ *  Neither pass transposes the volume as a whole, and every read and
+ *  write of the backing buffers is a contiguous run.
+ *
+ *  correlate() replaces the scene by its correlation with a template
+ *  spectrum in three passes rather than four: the forward z-transform,
+ *  the product with the spectrum and the inverse z-transform are done
+ *  on each block while it is in cache.
+ *
+ *  A 512-by-512-by-512 complex volume is 2 GB, too much for one Java
+ *  array of doubles, so volumes live in direct or file-mapped buffers.
+ *  Runs are at least a 4 KB page, since a mapped page dirtied by several
+ *  blocks in turn can be written back to its file once for each.
+ *  Mapped volumes much larger than free memory are still bound by that
+ *  writeback: with 6 GB of memory, a mapped 512-cube correlation takes
+ *  about 220 s per pass against 12 s for direct buffers.
+ *
+ *  % java VolumeFFT 128
+ *  32-by-32-by-32 fft3: max error vs fastCorr.fft along each axis = 1.2E-13
+ *  32-by-32-by-32 ifft3(fft3): max error = 1.1E-13
+ *  128-by-128-by-128 direct: fft3 in 364 ms
+ *  128-by-128-by-128 direct: template spectrum in 173 ms, correlation in 343 ms
+ *  peak at (x, y, z) = (78, 69, 0), value = 8.6813992E7, score = 65.1564887091696 expected (78, 69, 0)
+ *
+ *  % java -XX:MaxDirectMemorySize=4500m VolumeFFT 512
+ *  ...
+ *  512-by-512-by-512 direct: fft3 in 11760 ms
+ *  512-by-512-by-512 direct: template spectrum in 12127 ms, correlation in 24558 ms
+ *  peak at (x, y, z) = (158, 469, 432), value = 8.6813992E7, score = 151.66061820159678 expected (158, 469, 432)
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public final class VolumeFFT {
+
+    // largest block, in doubles per array, gathered for the z-pass
+    private static final int TILE = 1 << 15;
+
+    // shortest run of a row read or written by the z-pass, 4 KB
+    private static final int RUN = 512;
+
+    // what the z-pass does to each block
+    private static final int FORWARD   = 0;
+    private static final int INVERSE   = 1;
+    private static final int CONJUGATE = 2;    // forward, then conjugate
+    private static final int CORRELATE = 3;    // forward, times spectrum, inverse
+
+
+    // the maximum of a correlation volume, with the volume's mean and
+    // standard deviation
+    public static final class Peak {
+        private final int x, y, z;
+        private final double value;
+        private final double mean;
+        private final double stddev;
+
+        public Peak(int x, int y, int z, double value, double mean, double stddev) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.value = value;
+            this.mean = mean;
+            this.stddev = stddev;
+        }
+
+        public int x()          { return x; }
+        public int y()          { return y; }
+        public int z()          { return z; }
+        public double value()   { return value; }
+        public double mean()    { return mean; }
+        public double stddev()  { return stddev; }
+
+        // return the number of standard deviations the peak stands above the mean
+        public double score() {
+            return stddev > 0 ? (value - mean) / stddev : 0.0;
+        }
+
+        public String toString() {
+            return "peak at (x, y, z) = (" + x + ", " + y + ", " + z + "), value = " + (float) value
+                 + ", score = " + score();
+        }
+    }
+
+
+    // static methods only
+    private VolumeFFT() { }
+
+
+    // compute the 3D FFT of the volume in place
+    public static void fft3(Volume v) {
+        check(v);
+        planes(v, false);
+        columns(v, FORWARD, null);
+    }
+
+    // compute the inverse 3D FFT of the volume in place
+    public static void ifft3(Volume v) {
+        check(v);
+        planes(v, true);
+        columns(v, INVERSE, null);
+    }
+
+    // replace the zero-padded template by its conjugate spectrum
+    public static void conjugateSpectrum(Volume template) {
+        check(template);
+        planes(template, false);
+        columns(template, CONJUGATE, null);
+    }
+
+    // replace the zero-padded scene by its correlation with the template
+    // whose conjugate spectrum is given; the real part at (x, y, z) is the
+    // match with the template's corner at that offset
+    public static void correlate(Volume scene, Volume spectrum) {
+        check(scene);
+        if (spectrum.nx() != scene.nx() || spectrum.ny() != scene.ny() || spectrum.nz() != scene.nz()) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+        planes(scene, false);
+        columns(scene, CORRELATE, spectrum);
+        planes(scene, true);
+    }
+
+
+    // return the peak of the real part within the cols-by-rows-by-slices
+    // corner at the origin, with the mean and deviation of the whole volume
+    public static Peak peak(Volume surface, int cols, int rows, int slices) {
+        int nx = surface.nx(), ny = surface.ny(), nz = surface.nz();
+        if (cols <= 0 || rows <= 0 || slices <= 0 || cols > nx || rows > ny || slices > nz) {
+            throw new IllegalArgumentException("corner is not within the volume");
+        }
+        double[] re = new double[nx * ny];
+        double[] im = new double[nx * ny];
+        double sum = 0.0;
+        double sum2 = 0.0;
+        double best = Double.NEGATIVE_INFINITY;
+        int bx = 0, by = 0, bz = 0;
+        for (int z = 0; z < nz; z++) {
+            surface.readSlice(z, re, im);
+            for (int i = 0; i < re.length; i++) {
+                sum  += re[i];
+                sum2 += re[i] * re[i];
+            }
+            if (z >= slices) continue;
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < cols; x++) {
+                    if (re[y*nx + x] > best) {
+                        best = re[y*nx + x];
+                        bx = x;
+                        by = y;
+                        bz = z;
+                    }
+                }
+            }
+        }
+        double n = (double) nx * ny * nz;
+        double mean = sum / n;
+        double var = Math.max(0.0, sum2 / n - mean * mean);
+        return new Peak(bx, by, bz, best, mean, Math.sqrt(var));
+    }
+
+
+    private static void check(Volume v) {
+        if (Integer.bitCount(v.nx()) != 1 || Integer.bitCount(v.ny()) != 1 || Integer.bitCount(v.nz()) != 1) {
+            throw new IllegalArgumentException("dimensions are not powers of 2");
+        }
+    }
+
+    // return the number of items per task so each thread gets a few tasks
+    private static int grain(int count) {
+        return Math.max(1, count / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+
+    // transform every z-slice along x and y
+    private static void planes(Volume v, boolean inverse) {
+        Planes task = new Planes(v, inverse, grain(v.nz()), 0, v.nz());
+        if (v.nz() <= task.grain) task.compute();
+        else                      ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // slices [from, to) of the planes pass, split in halves down to grain
+    private static final class Planes extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Volume v;
+        private final boolean inverse;
+        private final int grain;
+        private final int from, to;
+
+        Planes(Volume v, boolean inverse, int grain, int from, int to) {
+            this.v = v;
+            this.inverse = inverse;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Planes(v, inverse, grain, from, mid),
+                          new Planes(v, inverse, grain, mid, to));
+                return;
+            }
+            int nx = v.nx(), ny = v.ny();
+            double[] re = new double[nx * ny];
+            double[] im = new double[nx * ny];
+            for (int z = from; z < to; z++) {
+                v.readSlice(z, re, im);
+                if (inverse) BatchFFT.ifft2(re, im, ny, nx);
+                else         BatchFFT.fft2(re, im, ny, nx);
+                v.writeSlice(z, re, im);
+            }
+        }
+    }
+
+
+    // transform every z-column, block by block; a block is cols positions
+    // of one row, or all of rows whole rows, so it is one run per slice
+    private static void columns(Volume v, int mode, Volume spectrum) {
+        int nx = v.nx(), ny = v.ny(), nz = v.nz();
+        int cols = Math.min(nx, Math.max(RUN, TILE / nz));
+        int rows = cols < nx ? 1 : Math.min(ny, Math.max(1, TILE / (nz * nx)));
+        int blocks = (nx / cols) * (ny / rows);
+        Columns task = new Columns(v, mode, spectrum, cols, rows, grain(blocks), 0, blocks);
+        if (blocks <= task.grain) task.compute();
+        else                      ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // blocks [from, to) of the columns pass, split in halves down to grain
+    private static final class Columns extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Volume v;
+        private final int mode;
+        private final Volume spectrum;
+        private final int cols, rows;
+        private final int grain;
+        private final int from, to;
+
+        Columns(Volume v, int mode, Volume spectrum, int cols, int rows, int grain, int from, int to) {
+            this.v = v;
+            this.mode = mode;
+            this.spectrum = spectrum;
+            this.cols = cols;
+            this.rows = rows;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Columns(v, mode, spectrum, cols, rows, grain, from, mid),
+                          new Columns(v, mode, spectrum, cols, rows, grain, mid, to));
+                return;
+            }
+            int nz = v.nz();
+            int run = cols * rows;
+            int across = v.nx() / cols;
+            int len = nz * run;
+            double[] re = new double[len];
+            double[] im = new double[len];
+            double[] sre = mode == CORRELATE ? new double[len] : null;
+            double[] sim = mode == CORRELATE ? new double[len] : null;
+            for (int b = from; b < to; b++) {
+                int x = (b % across) * cols;
+                int y = (b / across) * rows;
+                for (int z = 0; z < nz; z++) v.read(z, x, y, run, re, im, z * run);
+                if (mode == INVERSE) {
+                    BatchFFT.inverseInterleaved(re, im, nz, run);
+                }
+                else {
+                    BatchFFT.interleaved(re, im, nz, run);
+                    if (mode == CONJUGATE) {
+                        ComplexVector.conjugate(re, im, 0, len);
+                    }
+                    else if (mode == CORRELATE) {
+                        for (int z = 0; z < nz; z++) spectrum.read(z, x, y, run, sre, sim, z * run);
+                        ComplexVector.multiply(re, im, sre, sim, 0, len);
+                        BatchFFT.inverseInterleaved(re, im, nz, run);
+                    }
+                }
+                for (int z = 0; z < nz; z++) v.write(z, x, y, run, re, im, z * run);
+            }
+        }
+    }
+
+
+    // sample client for testing: check fft3 against one-dimensional
+    // transforms along each axis, then time a transform and a correlation
+    // of a template hidden in a random volume
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        File dir = args.length > 1 ? new File(args[1]) : null;
+        Random random = new Random(7);
+
+        // accuracy on a small volume against fastCorr.fft line by line
+        int n = 32;
+        Volume v = Volume.allocate(n, n, n);
+        double[][] re = new double[n][n * n];
+        double[][] im = new double[n][n * n];
+        for (int z = 0; z < n; z++) {
+            for (int i = 0; i < n * n; i++) {
+                re[z][i] = random.nextDouble() - 0.5;
+                im[z][i] = random.nextDouble() - 0.5;
+            }
+            v.writeSlice(z, re[z], im[z]);
+        }
+        fft3(v);
+        double[] r = new double[n];
+        double[] m = new double[n];
+        for (int axis = 0; axis < 3; axis++) {
+            for (int a = 0; a < n; a++) {
+                for (int c = 0; c < n; c++) {
+                    // line (a, c) along the axis: x-lines in slice a, row c;
+                    // y-lines in slice a, column c; z-lines at row a, column c
+                    for (int k = 0; k < n; k++) {
+                        int z = axis == 2 ? k : a, i = axis == 0 ? c*n + k : axis == 1 ? k*n + c : a*n + c;
+                        r[k] = re[z][i];
+                        m[k] = im[z][i];
+                    }
+                    fastCorr.fft(r, m);
+                    for (int k = 0; k < n; k++) {
+                        int z = axis == 2 ? k : a, i = axis == 0 ? c*n + k : axis == 1 ? k*n + c : a*n + c;
+                        re[z][i] = r[k];
+                        im[z][i] = m[k];
+                    }
+                }
+            }
+        }
+        double err = 0.0;
+        for (int z = 0; z < n; z++) {
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    err = Math.max(err, Math.hypot(v.re(x, y, z) - re[z][y*n + x], v.im(x, y, z) - im[z][y*n + x]));
+                }
+            }
+        }
+        System.out.printf("%d-by-%d-by-%d fft3: max error vs fastCorr.fft along each axis = %.1E\n", n, n, n, err);
+
+        for (int z = 0; z < n; z++) v.readSlice(z, re[z], im[z]);
+        ifft3(v);
+        fft3(v);
+        err = 0.0;
+        for (int z = 0; z < n; z++) {
+            for (int i = 0; i < n * n; i++) {
+                err = Math.max(err, Math.hypot(v.re(i % n, i / n, z) - re[z][i], v.im(i % n, i / n, z) - im[z][i]));
+            }
+        }
+        System.out.printf("%d-by-%d-by-%d ifft3(fft3): max error = %.1E\n", n, n, n, err);
+
+        // a template hidden in a random scene volume
+        String kind = dir == null ? "direct" : "mapped";
+        Volume scene = dir == null ? Volume.allocate(size, size, size)
+                                   : Volume.map(new File(dir, "scene.bin"), size, size, size);
+        Volume template = dir == null ? Volume.allocate(size, size, size)
+                                      : Volume.map(new File(dir, "template.bin"), size, size, size);
+        int t = 16;
+        double[][] patch = new double[t][t * t];
+        for (int z = 0; z < t; z++) {
+            for (int i = 0; i < t * t; i++) patch[z][i] = random.nextInt(256);
+        }
+        int ox = random.nextInt(size - t), oy = random.nextInt(size - t), oz = random.nextInt(size - t);
+        double[] frame = new double[size * size];
+        for (int z = 0; z < size; z++) {
+            for (int i = 0; i < frame.length; i++) frame[i] = random.nextInt(128);
+            if (z >= oz && z < oz + t) {
+                for (int j = 0; j < t; j++) System.arraycopy(patch[z - oz], j*t, frame, (oy + j)*size + ox, t);
+            }
+            scene.setReal(z, frame, size, size);
+            if (z < t) template.setReal(z, patch[z], t, t);
+            else       template.clear(z);
+        }
+
+        long start = System.nanoTime();
+        fft3(scene);
+        System.out.printf("%d-by-%d-by-%d %s: fft3 in %.0f ms\n",
+                          size, size, size, kind, (System.nanoTime() - start) / 1e6);
+        ifft3(scene);
+
+        start = System.nanoTime();
+        conjugateSpectrum(template);
+        double spectrumMs = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        correlate(scene, template);
+        double correlateMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%d-by-%d-by-%d %s: template spectrum in %.0f ms, correlation in %.0f ms\n",
+                          size, size, size, kind, spectrumMs, correlateMs);
+        Peak p = peak(scene, size - t + 1, size - t + 1, size - t + 1);
+        System.out.println(p + " expected (" + ox + ", " + oy + ", " + oz + ")");
+    }
+
+}
@@ -279,6 +279,87 @@ public final class fastCorr implements ActionListener {
 
     }
 
+    // twiddle factors cos/sin(-2 pi k / n) for k < n/2, indexed by log2(n)
+    private static final Twiddles[] TWIDDLES = new Twiddles[31];
+
+    // final fields make a table safe to publish without locking
+    static final class Twiddles {
+        final double[] cos;
+        final double[] sin;
+
+        Twiddles(int n) {
+            cos = new double[n/2];
+            sin = new double[n/2];
+            for (int k = 0; k < n/2; k++) {
+                double kth = -2 * k * Math.PI / n;
+                cos[k] = Math.cos(kth);
+                sin[k] = Math.sin(kth);
+            }
+        }
+    }
+
+
+    // compute the FFT of the signal (re[], im[]) in place, assuming its length
+    // is a power of 2; no objects are allocated once the twiddle factors and
+    // plan for this length are cached
+    public static void fft(double[] re, double[] im) {
+        int n = re.length;
+        if (im.length != n) {
+            throw new IllegalArgumentException("Dimensions don't agree");
+        }
+        if (Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("n is not a power of 2");
+        }
+        if (n == 1) return;
+
+        // radix 2, radix 4 or split radix, as chosen by the planner
+        FFTPlanner.plan(n).transform(re, im);
+    }
+
+
+    // compute the inverse FFT of the signal (re[], im[]) in place, assuming
+    // its length is a power of 2
+    public static void ifft(double[] re, double[] im) {
+        int n = re.length;
+        for (int i = 0; i < n; i++) im[i] = -im[i];
+        fft(re, im);
+        double scale = 1.0 / n;
+        for (int i = 0; i < n; i++) {
+            re[i] =  re[i] * scale;
+            im[i] = -im[i] * scale;
+        }
+    }
+
+
+    // return the cached twiddle factors for length n
+    static Twiddles twiddles(int n) {
+        int log = Integer.numberOfTrailingZeros(n);
+        Twiddles w = TWIDDLES[log];
+        if (w == null) {
+            w = new Twiddles(n);
+            TWIDDLES[log] = w;
+        }
+        return w;
+    }
+
+
+    // compute bin k of the DFT of x[] by the Goertzel recurrence, in O(n) time;
+    // x[] may have any length
+    public static Complex goertzel(double[] x, int k) {
+        int n = x.length;
+        double w = 2 * Math.PI * k / n;
+        double coeff = 2 * Math.cos(w);
+        double s1 = 0.0;
+        double s2 = 0.0;
+        for (int i = 0; i < n; i++) {
+            double s = x[i] + coeff * s1 - s2;
+            s2 = s1;
+            s1 = s;
+        }
+        return new Complex(s1 * Math.cos(w) - s2, s1 * Math.sin(w));
+    }
+
+
     public static Complex[] cconvolve(Complex[] x, Complex[] y) {
 
         if (x.length != y.length) {
@@ -314,6 +395,59 @@ public final class fastCorr implements ActionListener {
     }
 
 
+    // compute the 2D FFT of x[][] (rows then columns), assuming both
+    // dimensions are powers of 2
+    public static Complex[][] fft2(Complex[][] x) {
+        return transform2(x, false);
+    }
+
+
+    // compute the inverse 2D FFT of x[][], assuming both dimensions are powers of 2
+    public static Complex[][] ifft2(Complex[][] x) {
+        return transform2(x, true);
+    }
+
+
+    private static Complex[][] transform2(Complex[][] x, boolean inverse) {
+        int rows = x.length;
+        int cols = x[0].length;
+        double[] re = new double[rows * cols];
+        double[] im = new double[rows * cols];
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < cols; i++) {
+                re[j*cols + i] = x[j][i].re();
+                im[j*cols + i] = x[j][i].im();
+            }
+        }
+
+        // rows and columns as two batched passes
+        if (inverse) BatchFFT.ifft2(re, im, rows, cols);
+        else         BatchFFT.fft2(re, im, rows, cols);
+
+        Complex[][] y = new Complex[rows][cols];
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < cols; i++) {
+                y[j][i] = new Complex(re[j*cols + i], im[j*cols + i]);
+            }
+        }
+        return y;
+    }
+
+
+    // compute the 2D FFT of the row-major rows-by-cols matrix (re[], im[])
+    // in place, assuming both dimensions are powers of 2
+    public static void fft2(double[] re, double[] im, int rows, int cols) {
+        BatchFFT.fft2(re, im, rows, cols);
+    }
+
+
+    // compute the inverse 2D FFT of the row-major rows-by-cols matrix
+    // (re[], im[]) in place, assuming both dimensions are powers of 2
+    public static void ifft2(double[] re, double[] im, int rows, int cols) {
+        BatchFFT.ifft2(re, im, rows, cols);
+    }
+
+
     public static void show(Complex[] x, String title) {
         System.out.println(title);
         System.out.println("-------------------");
@@ -333,204 +467,69 @@ public final class fastCorr implements ActionListener {
         rendImage image2 = new rendImage("image2.png" );
         System.out.printf("%d-by-%d\n", image1.width(), image1.height());
         
-        Color testImage;
-        
         int imageWidth, imageHeight;
         imageWidth = image1.width();
         imageHeight = image1.height();
         
-        Complex[][] Return = new Complex[512][512];
-        Complex[][] Pulse = new Complex[512][512];
-        
-        /* Color to greyscale conversion */
-
-        int i =0;
-        int j =0;
-        
-        do
-        {
-        	j=0;
-        	do
-        	{
-        		testImage = image1.get(i,j);
-        		
-        		int red = (int) (testImage.getRed());
-				
-				Complex c = new Complex(red, 0); 
-				Return[j][i] = c;
-        		
-        		j++;
-        	}while(j<imageHeight);
-        	
-        	i++;
-        }while(i<imageWidth);
-        
-        
-        
-        for(i=0;i<imageWidth;i++)
+        boolean fourierMellin = false;
+        boolean windowed = false;
+        for (String arg : args)
         {
-        	for(j=0;j<imageHeight;j++)
-        	{
-        		testImage = image2.get(i,j);
-        		
-        		int red = (int) (testImage.getRed());
-			
-				Complex c = new Complex(red, 0);
-				Pulse[j][i] = c;
-        	}
-        	
+        	if (arg.equals("-fm")) fourierMellin = true;
+        	if (arg.equals("-w"))  windowed = true;
         }
         
+        /* Greyscale ingest straight into the FFT input buffers, zero-padded,
+           in one parallel pass; with -w the mean is removed and a Hann
+           window applied to suppress the DC spike */
+
+        Ingest.Window window = windowed ? Ingest.Window.HANN : Ingest.Window.NONE;
+        double[] retRe = new double[512*512], retIm = new double[512*512];
+        double[] pulRe = new double[512*512], pulIm = new double[512*512];
+        Ingest.load(image1.getBufferedImage(), window, windowed, 512, retRe, retIm);
+        Ingest.load(image2.getBufferedImage(), window, windowed, 512, pulRe, pulIm);
         
+        int i, j;
         
         rendImage greenSpotImage = new rendImage(imageWidth, imageHeight);
         
         
-        Complex[][] fftRet = new Complex[512][512];
-        Complex[][] fftPul = new Complex[512][512];
-        
-        Complex[] a = new Complex[512];
-        
-        
-        for(j=0;j<512;j++)
-        {
-        	for(i=0;i<512;i++)
-        	{
-        		a[i] = Return[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(i=0;i<512;i++)
-        	{
-        		fftRet[j][i] = b[i];
-        	}
-        }
-        
-        for(j=0;j<512;j++)
-        {
-        	for(i=0;i<512;i++)
-        	{
-        		a[i] = Pulse[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(i=0;i<512;i++)
-        	{
-        		fftPul[j][i] = b[i];
-        	}
-        }
-        
-        
-        Complex[][] twodfftRet = new Complex[512][512];
-        Complex[][] twodfftPul = new Complex[512][512];
-        
-        for(i=0;i<512;i++)
-        {
-        	for(j=0;j<512;j++)
-        	{
-        		a[j] = fftRet[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(j=0;j<512;j++)
-        	{
-        		twodfftRet[j][i] = b[j];
-        	}
-        }
-        
-        for(i=0;i<512;i++)
-        {
-        	for(j=0;j<512;j++)
-        	{
-        		a[j] = fftPul[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(j=0;j<512;j++)
-        	{
-        		twodfftPul[j][i] = b[j];
-        	}
-        }
-        
-        
-        for(i=0;i<512;i++)
-        {
-        	for(j=0;j<512;j++)
-        	{
-        		twodfftPul[i][j] = twodfftPul[i][j].conjugate();
-        	}
-        }
-        
-      
-        
-        Complex[][] starfft = new Complex[512][512];
-        for(i=0;i<512;i++)
-        {
-        	for(j=0;j<512;j++)
-        	{
-        		starfft[i][j] = twodfftRet[i][j].times(twodfftPul[i][j]);
-        	}
-        }
-        
-        Complex[][] inversefft = new Complex[512][512];
-        Complex[][] twodinversefft = new Complex[512][512];
-        
-        for(j=0;j<512;j++)
-        {
-        	for(i=0;i<512;i++)
-        	{
-        		a[i] = starfft[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(i=0;i<512;i++)
-        	{
-        		inversefft[j][i] = b[i];
-        	}
-        }
-        
-        
-        for(i=0;i<512;i++)
-        {
-        	for(j=0;j<512;j++)
-        	{
-        		a[j] = inversefft[j][i];
-        	}
-        	
-        	Complex[] b = fft(a);
-        	
-        	for(j=0;j<512;j++)
-        	{
-        		twodinversefft[j][i] = b[j];
-        	}
-        }
-        
-        float[][] newImage = new float[512][512];
+        /* 2D FFTs, each as a batched row pass and a batched column pass */
 
-        
-        for(i=0;i<512;i++)
+        BatchFFT.fft2(retRe, retIm, 512, 512);
+        BatchFFT.fft2(pulRe, pulIm, 512, 512);
+
+        /* Fourier-Mellin mode: rotation and scale of the pulse in the return */
+
+        if (fourierMellin)
         {
-        	for(j=0;j<512;j++)
-        	{
-        		newImage[i][j] = (float) twodinversefft[i][j].re();
-        	}
+        	FourierMellin fm = FourierMellin.register(retRe, retIm, pulRe, pulIm, 512);
+        	System.out.println("Fourier-Mellin " + fm);
         }
+
+
+        /* Conjugate, product and second transform as one lazy expression;
+           the conjugate and product are fused into the transform's input */
+
+        double[] twodinversefft = SpectralExpr.of(retRe, retIm, 512)
+                                      .times(SpectralExpr.of(pulRe, pulIm, 512).conj())
+                                      .fft().real();
         
-        
-        float maximum = newImage[0][0];
-        
+        /* Real part in display order, where newImage[i][j] is shown at
+           pixel (511-j, 511-i), and its maximum */
+
+        float[] newImage = new float[512*512];
+        float maximum = (float) twodinversefft[0];
+
         for(i=0;i<512;i++)
         {
         	for(j=0;j<512;j++)
         	{
-        		if(maximum < newImage[i][j])
+        		float v = (float) twodinversefft[i*512 + j];
+        		newImage[(511-i)*512 + (511-j)] = v;
+        		if(maximum < v)
         		{
-        			maximum = newImage[i][j];
+        			maximum = v;
         		}
         	}
         }
@@ -543,37 +542,26 @@ public final class fastCorr implements ActionListener {
         double sumj=0;
         
         
-        for(j=0;j<512;j++)
+        for(i=0;i<512;i++)
         {
-        	for(i=0;i<512;i++)
+        	for(j=0;j<512;j++)
         	{
-        		if(newImage[i][j] >= (0.9*maximum))
+        		if(newImage[i*512 + j] >= (0.9*maximum))
         		{
-        			Color newColor = new Color(255,0,0);
-        			greenSpotImage.set((511-j), (511-i), newColor);
-        			
         			counti++;
         			countj++;
-        			sumi=sumi+(511-i);
-        			sumj=sumj+(511-j);
-        			
-        			
-        			
-        		}
-        		else if(newImage[i][j] > 0)
-        		{
-        			float c = newImage[i][j]/maximum;
-        			Color newColor = new Color((int)(c*255),(int)(c*255),(int)(c*255));
-        			greenSpotImage.set((511-j), (511-i), newColor);
-        		}
-        		else
-        		{
-        			Color newColor = new Color(0,0,0);
-        			greenSpotImage.set((511-j), (511-i), newColor);
+        			sumi=sumi+i;
+        			sumj=sumj+j;
         		}
         	}
         }
         
+        /* Grey through a colormap table, with the pixels averaged above,
+           those at or above 90% of the maximum, in red */
+
+        Heatmap.render(newImage, 512, 512, Heatmap.lut(Heatmap.Colormap.GRAYSCALE), 0, maximum,
+                       0.9*maximum, 0xff0000, greenSpotImage.getBufferedImage());
+        
         System.out.println("average i for green spot is "+ (sumi/counti));
         System.out.println("average j for green spot is "+ (sumj/countj));        
         
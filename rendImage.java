@@ -132,6 +132,13 @@ public final class rendImage implements ActionListener {
         frame.repaint();
     }
 
+   /**
+     * Return the underlying BufferedImage, for bulk pixel access.
+     */
+    public BufferedImage getBufferedImage() {
+        return image;
+    }
+
    /**
      * Return the height of the picture (in pixels).
      */